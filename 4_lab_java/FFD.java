@@ -3,22 +3,66 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 import javax.imageio.ImageIO;
-import java.util.ArrayList;
-import java.util.List;
 
 public class FFD extends JFrame {
     private static final int WIDTH = 1300;
     private static final int HEIGHT = 1080;
-    private static final int GRID_SIZE = 3; // 3x3 grid
+    private static final int DEFAULT_GRID_SIZE = 4; // 4x4 grid
+    private static final int MAX_GRID_SIZE = 32;
     private static final int POINT_RADIUS = 8;
+    // Смещение изображения на панели рисования
+    private static final int IMAGE_OFFSET = 50;
+    // Параметры параллельного режима, можно переопределить через -Dffd.parallelism и -Dffd.tileSize
+    private static final int PARALLELISM = Integer.getInteger("ffd.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private static final int TILE_SIZE = Integer.getInteger("ffd.tileSize", 128);
+    // Во сколько раз уменьшено превью, которое показывается во время перетаскивания
+    private static final int PREVIEW_SCALE = Integer.getInteger("ffd.previewScale", 4);
+    // Пределы масштаба и шаг колёсика мыши
+    private static final double MIN_ZOOM = 1.0 / 64;
+    private static final double MAX_ZOOM = 32;
+    private static final double ZOOM_STEP = 1.25;
+    // Воспроизведение ключевых кадров: частота, длина сегмента между ключами,
+    // потоки и память для заранее посчитанных полей
+    private static final int ANIMATION_FPS = Integer.getInteger("ffd.animFps", 60);
+    private static final int FRAMES_PER_KEY = Integer.getInteger("ffd.framesPerKey", 60);
+    private static final int ANIMATION_THREADS = Integer.getInteger("ffd.animThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int ANIMATION_CACHE_MB = Integer.getInteger("ffd.animCacheMb", 512);
+    private static final int ANIMATION_LOOKAHEAD = Integer.getInteger("ffd.animLookahead", 30);
+    // Как часто обновляется строка со статистикой задержек
+    private static final int STATUS_INTERVAL_MS = 1000;
 
     private BufferedImage originalImage;
-    private BufferedImage deformedImage;
-    private List<Point> controlPoints = new ArrayList<>();
-    private Point selectedPoint = null;
+    private FFDRenderWorker renderWorker;
+    private JPanel drawingPanel;
+    private JLabel latencyLabel;
+    private FFDLattice lattice;
+    private int selectedPoint = -1;
+    // Текущий масштаб и сдвиг изображения на панели; точка, откуда начато панорамирование
+    private FFDViewportRenderer.View view = new FFDViewportRenderer.View(1, IMAGE_OFFSET, IMAGE_OFFSET);
+    private Point panStart;
+    private FFDSampler.Filter filter = FFDSampler.Filter.NEAREST;
+
+    // Ключевые кадры и воспроизведение. Пока animationFrame != null, вместо
+    // редактора показывается кадр анимации, а точки не редактируются
+    private final java.util.List<FFDLattice> keyframes = new java.util.ArrayList<>();
+    private FFDAnimationPlayer animationPlayer;
+    private Timer playbackTimer;
+    private BufferedImage animationFrame;
+    private int[] originalPixels;
+    private int playhead;
+    private int shownFrame = -1;
+    private boolean playing;
+    private boolean updatingTimeline;
+    private JButton keyframeButton;
+    private JButton playButton;
+    private JSlider timeline;
 
     public FFD() {
         setTitle("FFD");
@@ -29,8 +73,6 @@ public class FFD extends JFrame {
         // Загрузка изображения
         try {
             originalImage = ImageIO.read(new File("ayanami_img.png")); // Замените на ваш файл
-            deformedImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
         } catch (IOException e) {
             e.printStackTrace();
             originalImage = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
@@ -40,51 +82,150 @@ public class FFD extends JFrame {
             g.setColor(Color.BLUE);
             g.drawString("No image loaded", 150, 150);
             g.dispose();
-            deformedImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
         }
 
-        // Инициализация контрольных точек (3x3 grid)
-        initializeControlPoints();
-
-        // Первоначальное применение FFD
-        applyFFD();
+        // Инициализация решётки контрольных точек
+        lattice = new FFDLattice(DEFAULT_GRID_SIZE, DEFAULT_GRID_SIZE,
+                originalImage.getWidth(), originalImage.getHeight());
+        renderWorker = new FFDRenderWorker(originalImage, PREVIEW_SCALE, () -> drawingPanel.repaint());
+        renderWorker.setParallelism(PARALLELISM);
+        animationPlayer = new FFDAnimationPlayer(ANIMATION_THREADS, ANIMATION_CACHE_MB, ANIMATION_LOOKAHEAD,
+                () -> SwingUtilities.invokeLater(() -> {
+                    // Досчитался кадр, которого ждёт воспроизведение: показываем сразу, не дожидаясь такта
+                    if (shownFrame != playhead) {
+                        playbackTick();
+                    }
+                }));
+        playbackTimer = new Timer(1000 / ANIMATION_FPS, e -> playbackTick());
 
         // Панель управления
         JPanel controlPanel = new JPanel();
         JButton resetButton = new JButton("Сброс");
 
         resetButton.addActionListener(e -> {
-            initializeControlPoints();
+            lattice.reset();
             applyFFD();
-            repaint();
         });
 
+        JSpinner colsSpinner = new JSpinner(new SpinnerNumberModel(DEFAULT_GRID_SIZE, 2, MAX_GRID_SIZE, 1));
+        JSpinner rowsSpinner = new JSpinner(new SpinnerNumberModel(DEFAULT_GRID_SIZE, 2, MAX_GRID_SIZE, 1));
+        javax.swing.event.ChangeListener gridListener = e -> {
+            setLatticeSize((Integer) colsSpinner.getValue(), (Integer) rowsSpinner.getValue());
+        };
+        colsSpinner.addChangeListener(gridListener);
+        rowsSpinner.addChangeListener(gridListener);
+
+        JCheckBox parallelBox = new JCheckBox("Многопоточно (" + PARALLELISM + ")", PARALLELISM > 1);
+        parallelBox.addActionListener(e -> {
+            renderWorker.setParallelism(parallelBox.isSelected() ? PARALLELISM : 1);
+            applyFFD();
+        });
+
+        JComboBox<FFDSampler.Filter> filterBox = new JComboBox<>(FFDSampler.Filter.values());
+        filterBox.addActionListener(e -> {
+            filter = (FFDSampler.Filter) filterBox.getSelectedItem();
+            renderWorker.setFilter(filter);
+            applyFFD();
+        });
+
+        JButton saveLatticeButton = new JButton("Сохранить сетку");
+        saveLatticeButton.addActionListener(e -> saveLattice());
+
+        JButton saveFieldButton = new JButton("Сохранить поле");
+        saveFieldButton.addActionListener(e -> saveDisplacementField());
+
+        JButton exportButton = new JButton("Экспорт");
+        exportButton.addActionListener(e -> exportImage(exportButton));
+
+        keyframeButton = new JButton("Ключ (0)");
+        keyframeButton.addActionListener(e -> addKeyframe());
+
+        playButton = new JButton("Пуск");
+        playButton.addActionListener(e -> setPlaying(!playing));
+
+        JButton stopButton = new JButton("Стоп");
+        stopButton.addActionListener(e -> stopAnimation());
+
+        timeline = new JSlider(0, 0, 0);
+        timeline.addChangeListener(e -> {
+            if (!updatingTimeline && timeline.getMaximum() > 0) {
+                // Перемотка: показываем выбранный кадр, воспроизведение ставим на паузу
+                playhead = timeline.getValue();
+                setPlaying(false);
+            }
+        });
+
+        latencyLabel = new JLabel(" ");
+        // Подпись обновляется по таймеру, а не из paintComponent: setText вызывает
+        // revalidate и перерисовку, то есть ещё один кадр на каждый кадр
+        new Timer(STATUS_INTERVAL_MS, e -> updateLatencyLabel()).start();
+
         controlPanel.add(resetButton);
+        controlPanel.add(new JLabel("Сетка:"));
+        controlPanel.add(colsSpinner);
+        controlPanel.add(new JLabel("x"));
+        controlPanel.add(rowsSpinner);
+        controlPanel.add(parallelBox);
+        controlPanel.add(filterBox);
+        controlPanel.add(saveLatticeButton);
+        controlPanel.add(saveFieldButton);
+        controlPanel.add(exportButton);
+        controlPanel.add(keyframeButton);
+        controlPanel.add(playButton);
+        controlPanel.add(stopButton);
+        controlPanel.add(timeline);
+        controlPanel.add(latencyLabel);
         add(controlPanel, BorderLayout.NORTH);
 
         // Основная панель для рисования
-        JPanel drawingPanel = new JPanel() {
+        drawingPanel = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
                 super.paintComponent(g);
                 Graphics2D g2d = (Graphics2D) g;
                 g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-                // Рисуем деформированное изображение
-                if (deformedImage != null) {
-                    g2d.drawImage(deformedImage, 50, 50, null);
+                if (animationFrame != null) {
+                    // Кадр анимации в полном разрешении, масштабируем под текущий вид
+                    g2d.drawImage(animationFrame, (int) Math.round(view.panX), (int) Math.round(view.panY),
+                            (int) Math.round(animationFrame.getWidth() * view.zoom),
+                            (int) Math.round(animationFrame.getHeight() * view.zoom), null);
+                    return;
+                }
+
+                // Рисуем видимую часть деформированного изображения (кадр уже в экранных координатах)
+                BufferedImage frame = renderWorker.getFrame();
+                if (frame != null) {
+                    g2d.drawImage(frame, 0, 0, null);
+                }
+
+                // Пока полный кадр не пересчитан, поверх устаревшей области рисуем превью
+                FFDRenderWorker.Preview snapshot = renderWorker.getPreview();
+                if (snapshot != null && snapshot.region != null) {
+                    Rectangle previewRegion = snapshot.region;
+                    BufferedImage previewImage = snapshot.image;
+                    int scale = renderWorker.getPreviewScale();
+                    Graphics2D preview = (Graphics2D) g2d.create();
+                    preview.clipRect(previewRegion.x, previewRegion.y, previewRegion.width, previewRegion.height);
+                    preview.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    preview.drawImage(previewImage, 0, 0,
+                            previewImage.getWidth() * scale, previewImage.getHeight() * scale, null);
+                    preview.dispose();
                 }
+                renderWorker.framePresented(snapshot);
 
                 // Рисуем контрольные точки
                 g2d.setColor(Color.RED);
-                for (Point p : controlPoints) {
-                    g2d.fillOval(p.x - POINT_RADIUS, p.y - POINT_RADIUS, 2 * POINT_RADIUS, 2 * POINT_RADIUS);
+                for (int i = 0; i < lattice.size(); i++) {
+                    int x = (int) view.toScreenX(lattice.getX(i));
+                    int y = (int) view.toScreenY(lattice.getY(i));
+                    g2d.fillOval(x - POINT_RADIUS, y - POINT_RADIUS, 2 * POINT_RADIUS, 2 * POINT_RADIUS);
                 }
 
                 // Рисуем сетку
                 g2d.setColor(new Color(255, 0, 0, 100));
-                drawBezierGrid(g2d);
+                drawLatticeGrid(g2d);
             }
         };
 
@@ -92,10 +233,20 @@ public class FFD extends JFrame {
         drawingPanel.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                // Проверяем, не нажали ли на существующую точку
-                for (Point p : controlPoints) {
-                    if (e.getPoint().distance(p) <= POINT_RADIUS) {
-                        selectedPoint = p;
+                if (!SwingUtilities.isLeftMouseButton(e)) {
+                    // Правой или средней кнопкой двигаем изображение
+                    panStart = e.getPoint();
+                    return;
+                }
+                if (animationFrame != null) {
+                    return;
+                }
+                // Проверяем, не нажали ли на существующую точку (радиус точки — в экранных пикселях)
+                for (int i = 0; i < lattice.size(); i++) {
+                    double dx = e.getX() - view.toScreenX(lattice.getX(i));
+                    double dy = e.getY() - view.toScreenY(lattice.getY(i));
+                    if (Math.hypot(dx, dy) <= POINT_RADIUS) {
+                        selectedPoint = i;
                         return;
                     }
                 }
@@ -103,123 +254,262 @@ public class FFD extends JFrame {
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                selectedPoint = null;
+                selectedPoint = -1;
+                panStart = null;
             }
         });
 
         drawingPanel.addMouseMotionListener(new MouseAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (selectedPoint != null) {
-                    selectedPoint.setLocation(e.getPoint());
+                if (panStart != null) {
+                    view = new FFDViewportRenderer.View(view.zoom,
+                            view.panX + e.getX() - panStart.x, view.panY + e.getY() - panStart.y);
+                    panStart = e.getPoint();
                     applyFFD();
-                    repaint();
+                } else if (selectedPoint >= 0) {
+                    lattice.setPoint(selectedPoint, view.toImageX(e.getX()), view.toImageY(e.getY()));
+                    // Точка B-сплайна влияет только на свой носитель, остальное изображение не трогаем.
+                    // Деформация идёт в фоновом потоке, здесь только отдаём ему снимок решётки
+                    submit(lattice.support(selectedPoint));
                 }
             }
         });
 
+        // Колёсико масштабирует вокруг курсора: точка изображения под ним остаётся на месте
+        drawingPanel.addMouseWheelListener(e -> {
+            double zoom = view.zoom * Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+            zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+            double ix = view.toImageX(e.getX());
+            double iy = view.toImageY(e.getY());
+            view = new FFDViewportRenderer.View(zoom, e.getX() - ix * zoom, e.getY() - iy * zoom);
+            applyFFD();
+        });
+
+        drawingPanel.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                applyFFD();
+            }
+        });
+
         add(drawingPanel, BorderLayout.CENTER);
+        // Первый кадр рисуется, когда панель получит размер (componentResized)
     }
 
-    private void initializeControlPoints() {
-        controlPoints.clear();
+    private void setLatticeSize(int cols, int rows) {
+        lattice = new FFDLattice(cols, rows, originalImage.getWidth(), originalImage.getHeight());
+        selectedPoint = -1;
+        // Ключи с другой решёткой интерполировать нельзя
+        stopAnimation();
+        keyframes.clear();
+        updateAnimation();
+        applyFFD();
+    }
 
-        int imgWidth = originalImage.getWidth();
-        int imgHeight = originalImage.getHeight();
-        int startX = 50;
-        int startY = 50;
+    /** Запоминает текущее положение точек как следующий ключевой кадр. */
+    private void addKeyframe() {
+        keyframes.add(lattice.copy());
+        updateAnimation();
+    }
 
-        // Создаем равномерную сетку 3x3
-        for (int i = 0; i < GRID_SIZE; i++) {
-            for (int j = 0; j < GRID_SIZE; j++) {
-                int x = startX + (imgWidth / (GRID_SIZE - 1)) * j;
-                int y = startY + (imgHeight / (GRID_SIZE - 1)) * i;
-                controlPoints.add(new Point(x, y));
-            }
+    private void updateAnimation() {
+        keyframeButton.setText("Ключ (" + keyframes.size() + ")");
+        FFDAnimation animation = keyframes.isEmpty() ? null : new FFDAnimation(keyframes, FRAMES_PER_KEY);
+        animationPlayer.setAnimation(animation);
+        shownFrame = -1;
+        playhead = Math.min(playhead, animation == null ? 0 : animation.getFrameCount() - 1);
+        updatingTimeline = true;
+        timeline.setMaximum(animation == null ? 0 : animation.getFrameCount() - 1);
+        timeline.setValue(playhead);
+        updatingTimeline = false;
+    }
+
+    private void updateLatencyLabel() {
+        if (animationFrame != null) {
+            latencyLabel.setText("Кадр " + shownFrame + " | " + animationPlayer.summary());
+        } else {
+            latencyLabel.setText("Превью: " + renderWorker.getPreviewLatency().summary()
+                    + " | Полный кадр: " + renderWorker.getFullLatency().summary());
         }
     }
 
-    private void drawBezierGrid(Graphics2D g2d) {
-        // Рисуем кривые Безье по горизонтали
-        for (int row = 0; row < GRID_SIZE; row++) {
-            Point p0 = controlPoints.get(row * GRID_SIZE);
-            Point p1 = controlPoints.get(row * GRID_SIZE + 1);
-            Point p2 = controlPoints.get(row * GRID_SIZE + 2);
+    /** Включает режим анимации (если ещё не включён) и запускает или ставит на паузу воспроизведение. */
+    private void setPlaying(boolean play) {
+        if (animationPlayer.getFrameCount() < 2) {
+            return;
+        }
+        if (animationFrame == null) {
+            animationFrame = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            originalPixels = originalImage.getRGB(0, 0, originalImage.getWidth(), originalImage.getHeight(),
+                    null, 0, originalImage.getWidth());
+            shownFrame = -1;
+            playbackTimer.start();
+        }
+        playing = play;
+        playButton.setText(playing ? "Пауза" : "Пуск");
+        playbackTick();
+    }
 
-            Path2D path = new Path2D.Double();
-            path.moveTo(p0.x, p0.y);
+    /** Выход из режима анимации обратно в редактор. */
+    private void stopAnimation() {
+        playbackTimer.stop();
+        playing = false;
+        playButton.setText("Пуск");
+        animationFrame = null;
+        originalPixels = null;
+        drawingPanel.repaint();
+    }
 
-            for (double t = 0.1; t <= 1.0; t += 0.1) {
-                Point p = evaluateQuadraticBezier(t, p0, p1, p2);
-                path.lineTo(p.x, p.y);
-            }
+    /**
+     * Такт воспроизведения с фиксированной частотой. Следующий кадр показывается,
+     * только когда его поле уже в кэше; иначе держим текущий и ждём рабочие потоки.
+     */
+    private void playbackTick() {
+        if (animationFrame == null) {
+            return;
+        }
+        int count = animationPlayer.getFrameCount();
+        if (count == 0) {
+            return;
+        }
+        if (playing && shownFrame == playhead) {
+            playhead = (playhead + 1) % count;
+        }
+        FFDDisplacementField field = animationPlayer.request(playhead);
+        if (field == null || shownFrame == playhead) {
+            return;
+        }
+        field.apply(originalPixels, ((DataBufferInt) animationFrame.getRaster().getDataBuffer()).getData());
+        shownFrame = playhead;
+        updatingTimeline = true;
+        timeline.setValue(playhead);
+        updatingTimeline = false;
+        drawingPanel.repaint();
+    }
 
-            g2d.draw(path);
+    /** Сохраняет решётку в текстовом виде для пакетной обработки (FFDBatch). */
+    private void saveLattice() {
+        JFileChooser chooser = new JFileChooser(".");
+        chooser.setSelectedFile(new File("lattice.txt"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            lattice.write(chooser.getSelectedFile().toPath());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Не удалось сохранить сетку: " + ex.getMessage(),
+                    "Ошибка", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
-        // Рисуем кривые Безье по вертикали
-        for (int col = 0; col < GRID_SIZE; col++) {
-            Point p0 = controlPoints.get(col);
-            Point p1 = controlPoints.get(col + GRID_SIZE);
-            Point p2 = controlPoints.get(col + 2 * GRID_SIZE);
+    /** Запекает текущую деформацию в файл, чтобы применять её к последовательностям кадров. */
+    private void saveDisplacementField() {
+        JFileChooser chooser = new JFileChooser(".");
+        chooser.setSelectedFile(new File("deformation.ffdf"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            FFDDisplacementField.bake(lattice).save(chooser.getSelectedFile().toPath());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Не удалось сохранить поле: " + ex.getMessage(),
+                    "Ошибка", JOptionPane.ERROR_MESSAGE);
+        }
+    }
 
-            Path2D path = new Path2D.Double();
-            path.moveTo(p0.x, p0.y);
+    /**
+     * Сохраняет деформированное изображение в полном разрешении. Только здесь деформируется
+     * всё изображение целиком, на экране рисуется лишь видимая область. Деформация и запись
+     * идут в фоне, чтобы не держать EDT; кнопка button недоступна, пока экспорт не закончится.
+     */
+    private void exportImage(JButton button) {
+        JFileChooser chooser = new JFileChooser(".");
+        chooser.setSelectedFile(new File("deformed.png"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        FFDLattice snapshot = lattice.copy();
+        FFDSampler.Filter exportFilter = filter;
+        button.setEnabled(false);
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                BufferedImage result = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(),
+                        BufferedImage.TYPE_INT_ARGB);
+                FFDWarpEngine engine = new FFDWarpEngine(originalImage, result, snapshot);
+                try {
+                    engine.setParallelism(PARALLELISM, TILE_SIZE, TILE_SIZE);
+                    engine.setFilter(exportFilter);
+                    engine.warp();
+                } finally {
+                    engine.shutdown();
+                }
+                ImageIO.write(result, "png", file);
+                return null;
+            }
 
-            for (double t = 0.1; t <= 1.0; t += 0.1) {
-                Point p = evaluateQuadraticBezier(t, p0, p1, p2);
-                path.lineTo(p.x, p.y);
+            @Override
+            protected void done() {
+                button.setEnabled(true);
+                try {
+                    get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    ex.getCause().printStackTrace();
+                    JOptionPane.showMessageDialog(FFD.this, "Не удалось сохранить изображение: "
+                            + ex.getCause().getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                }
             }
+        }.execute();
+    }
 
+    private void drawLatticeGrid(Graphics2D g2d) {
+        int cols = lattice.getCols();
+        int rows = lattice.getRows();
+
+        // Рисуем линии решётки по горизонтали
+        for (int row = 0; row < rows; row++) {
+            Path2D path = new Path2D.Double();
+            int first = lattice.index(0, row);
+            path.moveTo(view.toScreenX(lattice.getX(first)), view.toScreenY(lattice.getY(first)));
+            for (int col = 1; col < cols; col++) {
+                int i = lattice.index(col, row);
+                path.lineTo(view.toScreenX(lattice.getX(i)), view.toScreenY(lattice.getY(i)));
+            }
             g2d.draw(path);
         }
-    }
 
-    private Point evaluateQuadraticBezier(double t, Point p0, Point p1, Point p2) {
-        double mt = 1 - t;
-        double x = mt * mt * p0.x + 2 * mt * t * p1.x + t * t * p2.x;
-        double y = mt * mt * p0.y + 2 * mt * t * p1.y + t * t * p2.y;
-        return new Point((int) x, (int) y);
+        // Рисуем линии решётки по вертикали
+        for (int col = 0; col < cols; col++) {
+            Path2D path = new Path2D.Double();
+            int first = lattice.index(col, 0);
+            path.moveTo(view.toScreenX(lattice.getX(first)), view.toScreenY(lattice.getY(first)));
+            for (int row = 1; row < rows; row++) {
+                int i = lattice.index(col, row);
+                path.lineTo(view.toScreenX(lattice.getX(i)), view.toScreenY(lattice.getY(i)));
+            }
+            g2d.draw(path);
+        }
     }
 
     private void applyFFD() {
-        int width = originalImage.getWidth();
-        int height = originalImage.getHeight();
-
-        // Координаты исходной сетки (до деформации)
-        int startX = 50;
-        int startY = 50;
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                // Нормализованные координаты в сетке [0..1]
-                double u = (double) x / (width - 1);
-                double v = (double) y / (height - 1);
-
-                // Вычисляем новые координаты с использованием биквадратичной поверхности Безье
-                Point newPoint = evaluateBiquadraticBezierSurface(u, v);
-
-                // Проверяем границы
-                if (newPoint.x >= 0 && newPoint.x < width && newPoint.y >= 0 && newPoint.y < height) {
-                    deformedImage.setRGB(x, y, originalImage.getRGB(newPoint.x, newPoint.y));
-                } else {
-                    deformedImage.setRGB(x, y, 0); // Прозрачный/черный за границами
-                }
-            }
-        }
+        // Полный пересчёт видимой области в фоновом потоке
+        submit(null);
     }
 
-    private Point evaluateBiquadraticBezierSurface(double u, double v) {
-        // Вычисляем точки вдоль оси u
-        Point p0 = evaluateQuadraticBezier(u,
-                controlPoints.get(0), controlPoints.get(1), controlPoints.get(2));
-        Point p1 = evaluateQuadraticBezier(u,
-                controlPoints.get(3), controlPoints.get(4), controlPoints.get(5));
-        Point p2 = evaluateQuadraticBezier(u,
-                controlPoints.get(6), controlPoints.get(7), controlPoints.get(8));
-
-        // Интерполируем вдоль оси v
-        return evaluateQuadraticBezier(v, p0, p1, p2);
+    private void submit(Rectangle dirty) {
+        int w = drawingPanel.getWidth();
+        int h = drawingPanel.getHeight();
+        if (w > 0 && h > 0) {
+            renderWorker.submit(lattice.copy(), dirty, view, w, h);
+        }
+        drawingPanel.repaint();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Анимация FFD по ключевым кадрам. Ключи расставлены равномерно через framesPerKey
+ * кадров; между ними каждая контрольная точка движется по сплайну Катмулла-Рома,
+ * так что траектория проходит через ключи и гладкая на стыках сегментов.
+ * Объект неизменяемый: при изменении ключей создаётся новая анимация.
+ */
+class FFDAnimation {
+    private final List<FFDLattice> keyframes;
+    private final int framesPerKey;
+
+    FFDAnimation(List<FFDLattice> keyframes, int framesPerKey) {
+        if (keyframes.isEmpty()) {
+            throw new IllegalArgumentException("Нужен хотя бы один ключевой кадр");
+        }
+        if (framesPerKey < 1) {
+            throw new IllegalArgumentException("Между ключами должен быть хотя бы один кадр");
+        }
+        FFDLattice first = keyframes.get(0);
+        this.keyframes = new ArrayList<>();
+        for (FFDLattice key : keyframes) {
+            if (key.getCols() != first.getCols() || key.getRows() != first.getRows()
+                    || key.getImageWidth() != first.getImageWidth()
+                    || key.getImageHeight() != first.getImageHeight()) {
+                throw new IllegalArgumentException("Ключевые кадры должны иметь одинаковую решётку");
+            }
+            this.keyframes.add(key.copy());
+        }
+        this.framesPerKey = framesPerKey;
+    }
+
+    int getFrameCount() {
+        return (keyframes.size() - 1) * framesPerKey + 1;
+    }
+
+    int getKeyframeCount() {
+        return keyframes.size();
+    }
+
+    int getImageWidth() {
+        return keyframes.get(0).getImageWidth();
+    }
+
+    int getImageHeight() {
+        return keyframes.get(0).getImageHeight();
+    }
+
+    /** Решётка в кадре frame (0 .. getFrameCount() - 1). */
+    FFDLattice frame(int frame) {
+        if (frame < 0 || frame >= getFrameCount()) {
+            throw new IndexOutOfBoundsException("Кадр " + frame + " вне анимации");
+        }
+        int last = keyframes.size() - 1;
+        int segment = Math.min(frame / framesPerKey, Math.max(0, last - 1));
+        double t = (frame - segment * framesPerKey) / (double) framesPerKey;
+
+        // Четыре соседних ключа, на краях повторяем крайний
+        FFDLattice p0 = keyframes.get(Math.max(segment - 1, 0));
+        FFDLattice p1 = keyframes.get(segment);
+        FFDLattice p2 = keyframes.get(Math.min(segment + 1, last));
+        FFDLattice p3 = keyframes.get(Math.min(segment + 2, last));
+
+        FFDLattice result = p1.copy();
+        for (int i = 0; i < result.size(); i++) {
+            result.setPoint(i,
+                    catmullRom(p0.getX(i), p1.getX(i), p2.getX(i), p3.getX(i), t),
+                    catmullRom(p0.getY(i), p1.getY(i), p2.getY(i), p3.getY(i), t));
+        }
+        return result;
+    }
+
+    private static double catmullRom(double p0, double p1, double p2, double p3, double t) {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        return 0.5 * (2 * p1 + (p2 - p0) * t
+                + (2 * p0 - 5 * p1 + 4 * p2 - p3) * t2
+                + (3 * p1 - p0 - 3 * p2 + p3) * t3);
+    }
+}
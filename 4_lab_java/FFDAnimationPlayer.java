@@ -0,0 +1,167 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Источник кадров для воспроизведения FFDAnimation. Поля деформации запекаются
+ * рабочими потоками впереди позиции воспроизведения (с учётом зацикливания)
+ * и складываются в LRU-кэш с ограничением по памяти, так что при перемотке и
+ * повторных проходах уже посчитанные кадры не пересчитываются.
+ */
+class FFDAnimationPlayer {
+    private final ExecutorService workers;
+    private final Runnable frameReady;
+    private final long budgetBytes;
+    private final int lookahead;
+
+    private final Object lock = new Object();
+    private FFDAnimation animation; // guarded by lock
+    // Номер анимации: задачи, поставленные для прежней анимации, отбрасываются
+    private long generation; // guarded by lock
+    private int playhead; // guarded by lock
+    // accessOrder = true: первым при обходе идёт давно не использованный кадр
+    private final LinkedHashMap<Integer, FFDDisplacementField> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes; // guarded by lock
+    private final Set<Integer> inFlight = new HashSet<>(); // guarded by lock
+
+    private long hits; // guarded by lock
+    private long misses; // guarded by lock
+    private long computed; // guarded by lock
+
+    /**
+     * @param threads    число потоков, запекающих поля
+     * @param budgetMb   сколько памяти можно занять под кэш полей
+     * @param lookahead  на сколько кадров вперёд считать
+     * @param frameReady вызывается из рабочего потока, когда кадр попал в кэш
+     */
+    FFDAnimationPlayer(int threads, long budgetMb, int lookahead, Runnable frameReady) {
+        this.budgetBytes = budgetMb << 20;
+        this.lookahead = lookahead;
+        this.frameReady = frameReady;
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "ffd-animation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Заменяет анимацию (или убирает её, если null); кэш прежней анимации сбрасывается. */
+    void setAnimation(FFDAnimation animation) {
+        synchronized (lock) {
+            this.animation = animation;
+            generation++;
+            playhead = 0;
+            cache.clear();
+            cachedBytes = 0;
+            inFlight.clear();
+        }
+    }
+
+    int getFrameCount() {
+        synchronized (lock) {
+            return animation == null ? 0 : animation.getFrameCount();
+        }
+    }
+
+    /**
+     * Возвращает поле кадра frame, если оно уже посчитано, иначе null.
+     * Заодно передвигает позицию воспроизведения и ставит в работу кадры впереди неё.
+     */
+    FFDDisplacementField request(int frame) {
+        synchronized (lock) {
+            if (animation == null) {
+                return null;
+            }
+            playhead = frame;
+            FFDDisplacementField field = cache.get(frame);
+            if (field != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            int count = animation.getFrameCount();
+            int window = window();
+            for (int ahead = 0; ahead <= window; ahead++) {
+                schedule((frame + ahead) % count);
+            }
+            return field;
+        }
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    String summary() {
+        synchronized (lock) {
+            return String.format(Locale.ROOT, "кэш %d кадров, %d из %d МБ, попаданий %d, промахов %d, посчитано %d",
+                    cache.size(), cachedBytes >> 20, budgetBytes >> 20, hits, misses, computed);
+        }
+    }
+
+    /** Сколько кадров вперёд держать: не больше lookahead и не больше, чем влезает в бюджет. */
+    private int window() {
+        long fieldBytes = 4L * animation.getImageWidth() * animation.getImageHeight();
+        long fit = Math.max(1, budgetBytes / fieldBytes);
+        return (int) Math.min(Math.min(lookahead, fit - 1), animation.getFrameCount() - 1);
+    }
+
+    private boolean inWindow(int frame) {
+        int count = animation.getFrameCount();
+        return Math.floorMod(frame - playhead, count) <= window();
+    }
+
+    private void schedule(int frame) {
+        if (cache.containsKey(frame) || !inFlight.add(frame)) {
+            return;
+        }
+        long taskGeneration = generation;
+        FFDAnimation taskAnimation = animation;
+        workers.execute(() -> compute(taskGeneration, taskAnimation, frame));
+    }
+
+    private void compute(long taskGeneration, FFDAnimation taskAnimation, int frame) {
+        synchronized (lock) {
+            if (taskGeneration != generation) {
+                return;
+            }
+            if (!inWindow(frame)) {
+                // Позицию перемотали, кадр больше не нужен
+                inFlight.remove(frame);
+                return;
+            }
+        }
+
+        FFDDisplacementField field = FFDDisplacementField.bake(taskAnimation.frame(frame));
+
+        synchronized (lock) {
+            if (taskGeneration != generation) {
+                return;
+            }
+            inFlight.remove(frame);
+            cache.put(frame, field);
+            cachedBytes += field.byteSize();
+            computed++;
+            trim();
+        }
+        frameReady.run();
+    }
+
+    /** Вытесняет давно не использованные кадры, пока кэш не уложится в бюджет. */
+    private void trim() {
+        Iterator<Map.Entry<Integer, FFDDisplacementField>> it = cache.entrySet().iterator();
+        while (cachedBytes > budgetBytes && cache.size() > 1 && it.hasNext()) {
+            Map.Entry<Integer, FFDDisplacementField> eldest = it.next();
+            if (eldest.getKey() == playhead) {
+                continue;
+            }
+            cachedBytes -= eldest.getValue().byteSize();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * Пакетная обработка каталога изображений без UI.
+ * Чтение, деформация и запись работают конвейером на отдельных потоках,
+ * связанных ограниченными очередями: ввод-вывод перекрывается с вычислениями,
+ * а в памяти одновременно находится не больше нескольких кадров.
+ *
+ * Деформация задаётся файлом решётки (см. FFDLattice.write) или запечённым
+ * полем (*.ffdf, см. FFDDisplacementField). Решётка запекается один раз на каждый
+ * встретившийся размер кадра, дальше каждый кадр стоит одну выборку на пиксель.
+ *
+ * Запуск: java FFDBatch <решётка.txt | поле.ffdf> <входной каталог> <выходной каталог>
+ *                       [--threads N] [--io-threads N] [--queue N]
+ */
+public class FFDBatch {
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".gif"};
+
+    private static final class Frame {
+        final Path source;
+        final BufferedImage image;
+
+        Frame(Path source, BufferedImage image) {
+            this.source = source;
+            this.image = image;
+        }
+    }
+
+    // Маркер конца потока данных для очередей
+    private static final Frame END = new Frame(null, null);
+
+    private final Path deformation;
+    private final boolean bakedField;
+    private final Path outputDir;
+    private final int warpThreads;
+    private final int ioThreads;
+
+    private final ConcurrentLinkedQueue<Path> inputs = new ConcurrentLinkedQueue<>();
+    // Куда записать результат для каждого входного файла; заполняется до запуска потоков
+    private final Map<Path, Path> targets = new HashMap<>();
+    private final BlockingQueue<Frame> decoded;
+    private final BlockingQueue<Frame> warped;
+    private final Map<Dimension, FFDDisplacementField> fields = new ConcurrentHashMap<>();
+
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+
+    FFDBatch(Path deformation, Path outputDir, int warpThreads, int ioThreads, int queueSize) {
+        this.deformation = deformation;
+        this.bakedField = deformation.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".ffdf");
+        this.outputDir = outputDir;
+        this.warpThreads = warpThreads;
+        this.ioThreads = ioThreads;
+        this.decoded = new ArrayBlockingQueue<>(queueSize);
+        this.warped = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            usage();
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = cores;
+        int ioThreads = Math.max(1, cores / 4);
+        int queue = 2 * cores;
+        for (int i = 3; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "--io-threads" -> ioThreads = Integer.parseInt(args[i + 1]);
+                case "--queue" -> queue = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Неизвестный параметр: " + args[i]);
+            }
+        }
+        if (threads < 1 || ioThreads < 1 || queue < 1) {
+            System.err.println("Число потоков и размер очереди должны быть не меньше 1");
+            usage();
+        }
+
+        FFDBatch batch = new FFDBatch(Paths.get(args[0]), Paths.get(args[2]), threads, ioThreads, queue);
+        batch.run(Paths.get(args[1]));
+    }
+
+    private static void usage() {
+        System.err.println("Использование: java FFDBatch <решётка.txt | поле.ffdf> <входной каталог>"
+                + " <выходной каталог> [--threads N] [--io-threads N] [--queue N]");
+        System.exit(1);
+    }
+
+    void run(Path inputDir) throws IOException, InterruptedException {
+        // Проверяем файл деформации до запуска конвейера, чтобы не получить ошибку на каждом кадре
+        if (bakedField) {
+            FFDDisplacementField.map(deformation);
+        } else {
+            FFDLattice.read(deformation, 2, 2);
+        }
+
+        try (Stream<Path> files = Files.list(inputDir)) {
+            files.filter(FFDBatch::isImage).sorted().forEach(inputs::add);
+        }
+        Files.createDirectories(outputDir);
+        assignTargets();
+        int total = inputs.size();
+
+        long start = System.nanoTime();
+        List<Thread> readers = startThreads("ffd-read", ioThreads, this::readLoop, null);
+        List<Thread> workers = startThreads("ffd-warp", warpThreads, this::warpLoop, decoded);
+        List<Thread> writers = startThreads("ffd-write", ioThreads, this::writeLoop, warped);
+
+        // Останавливаем стадии по очереди: каждая получает по маркеру конца на поток
+        joinAll(readers);
+        for (int i = 0; i < warpThreads; i++) {
+            decoded.put(END);
+        }
+        joinAll(workers);
+        for (int i = 0; i < ioThreads; i++) {
+            warped.put(END);
+        }
+        joinAll(writers);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "Обработано %d из %d изображений (ошибок: %d) за %.2f с%n",
+                written.get(), total, failed.get(), seconds);
+        System.out.printf(Locale.ROOT, "Пропускная способность: %.2f изобр./с, %.1f Мпикс/с%n",
+                written.get() / seconds, pixels.get() / 1e6 / seconds);
+    }
+
+    private void readLoop() throws InterruptedException {
+        Path path;
+        while ((path = inputs.poll()) != null) {
+            try {
+                BufferedImage image = ImageIO.read(path.toFile());
+                if (image == null) {
+                    throw new IOException("Неизвестный формат изображения");
+                }
+                decoded.put(new Frame(path, image));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Не удалось прочитать " + path + ": " + describe(e));
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    private void warpLoop() throws InterruptedException {
+        int[] scratch = null;
+        Frame frame;
+        while ((frame = decoded.take()) != END) {
+            BufferedImage image = frame.image;
+            try {
+                FFDDisplacementField field = fieldFor(image.getWidth(), image.getHeight());
+                BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(),
+                        BufferedImage.TYPE_INT_ARGB);
+                scratch = field.apply(image, result, scratch);
+                warped.put(new Frame(frame.source, result));
+            } catch (RuntimeException e) {
+                System.err.println("Не удалось обработать " + frame.source + ": " + describe(e));
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    private void writeLoop() throws InterruptedException {
+        Frame frame;
+        while ((frame = warped.take()) != END) {
+            Path target = targets.get(frame.source);
+            try {
+                ImageIO.write(frame.image, "png", target.toFile());
+                written.incrementAndGet();
+                pixels.addAndGet((long) frame.image.getWidth() * frame.image.getHeight());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Не удалось записать " + target + ": " + describe(e));
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Результат пишется в PNG с именем исходника без расширения. Если так совпадают имена
+     * нескольких исходников (a.jpg, a.bmp и a.png), каждый сохраняет своё расширение
+     * (a.jpg.png, a.bmp.png, a.png.png), иначе они затёрли бы друг друга. Имена сравниваются
+     * без учёта регистра, как в файловых системах Windows и macOS.
+     */
+    private void assignTargets() {
+        Map<String, Integer> uses = new HashMap<>();
+        for (Path input : inputs) {
+            uses.merge(stem(input).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+        Map<String, Path> claimed = new HashMap<>();
+        for (Path input : inputs) {
+            String stem = stem(input);
+            boolean clash = uses.get(stem.toLowerCase(Locale.ROOT)) > 1;
+            String name = (clash ? input.getFileName().toString() : stem) + ".png";
+            Path other = claimed.putIfAbsent(name.toLowerCase(Locale.ROOT), input);
+            if (other != null) {
+                // Остаётся только случай вроде a.jpg.png рядом с a.jpg и a.bmp
+                System.err.println("Результаты " + other + " и " + input + " записываются в один файл " + name);
+            }
+            targets.put(input, outputDir.resolve(name));
+        }
+    }
+
+    private static String stem(Path path) {
+        String name = path.getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /** Поле для кадров данного размера: решётка запекается один раз на размер. */
+    private FFDDisplacementField fieldFor(int width, int height) {
+        return fields.computeIfAbsent(new Dimension(width, height), size -> {
+            try {
+                if (bakedField) {
+                    return FFDDisplacementField.map(deformation);
+                }
+                return FFDDisplacementField.bake(FFDLattice.read(deformation, width, height));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return Files.isRegularFile(path);
+            }
+        }
+        return false;
+    }
+
+    /** Текст ошибки для отчёта: у исключений времени выполнения сообщения часто нет, тогда печатается тип. */
+    private static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Запускает count потоков стадии. Ошибки отдельных кадров стадия обрабатывает сама;
+     * если поток всё же падает (например, OutOfMemoryError), кадр считается неудачным,
+     * а поток до маркера конца выбирает и отбрасывает кадры из своей входной очереди input.
+     * Иначе, когда упадут все потоки стадии, предыдущая встанет на put() в заполненную
+     * очередь, а run — на маркерах конца.
+     */
+    private List<Thread> startThreads(String name, int count, Stage stage, BlockingQueue<Frame> input) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    try {
+                        stage.run();
+                    } catch (RuntimeException | Error e) {
+                        System.err.println("Поток " + Thread.currentThread().getName() + " остановлен: " + e);
+                        failed.incrementAndGet();
+                        if (input != null) {
+                            drain(input);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name + "-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private void drain(BlockingQueue<Frame> queue) throws InterruptedException {
+        while (queue.take() != END) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private static void joinAll(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
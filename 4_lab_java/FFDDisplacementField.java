@@ -0,0 +1,171 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Запечённая деформация FFD: для каждого пикселя результата хранится индекс
+ * исходного пикселя (или -1 за границами). Применение к новому кадру стоит
+ * одну выборку на пиксель, решётка и веса B-сплайна больше не нужны.
+ *
+ * Формат файла (little-endian): магическое число "FFDF", версия, ширина, высота,
+ * затем width * height значений int32. Файл можно отобразить в память как есть,
+ * поэтому он не больше 2 ГБ (одно отображение), то есть не больше ~536 Мпикс.
+ */
+class FFDDisplacementField {
+    private static final int MAGIC = 0x46444646; // "FFDF" в little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    // Наибольший размер файла, который отображается в память одним MappedByteBuffer
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    private final int width;
+    private final int height;
+    private final IntBuffer lookup;
+
+    private FFDDisplacementField(int width, int height, IntBuffer lookup) {
+        this.width = width;
+        this.height = height;
+        this.lookup = lookup;
+    }
+
+    /** Запекает текущее положение точек решётки. */
+    static FFDDisplacementField bake(FFDLattice lattice) {
+        int[] table = new int[lattice.getImageWidth() * lattice.getImageHeight()];
+        new FFDWarpEngine(lattice).bake(table);
+        return new FFDDisplacementField(lattice.getImageWidth(), lattice.getImageHeight(), IntBuffer.wrap(table));
+    }
+
+    /**
+     * Отображает сохранённое поле в память без копирования. Заголовок проверяется до
+     * отображения, индексы — один раз после: битый файл даёт IOException здесь, а не
+     * выход за границы массива на каждом кадре в apply.
+     */
+    static FFDDisplacementField map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // читаем заголовок целиком
+            }
+            if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+                throw new IOException("Файл не является полем FFD: " + path);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Неподдерживаемая версия поля FFD: " + header.getInt(4));
+            }
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Недопустимый размер поля FFD " + width + "x" + height + ": " + path);
+            }
+            long fileBytes = HEADER_BYTES + 4L * width * height;
+            if (fileBytes > MAX_FILE_BYTES) {
+                throw new IOException("Поле FFD " + width + "x" + height + " больше 2 ГБ, формат это не поддерживает: " + path);
+            }
+            if (channel.size() != fileBytes) {
+                throw new IOException("Размер файла не совпадает с заголовком: " + path);
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileBytes);
+            buffer.position(HEADER_BYTES);
+            IntBuffer lookup = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            int size = width * height;
+            for (int i = 0; i < size; i++) {
+                int index = lookup.get(i);
+                if (index < -1 || index >= size) {
+                    throw new IOException("Индекс " + index + " в пикселе " + i + " вне поля "
+                            + width + "x" + height + ": " + path);
+                }
+            }
+            return new FFDDisplacementField(width, height, lookup);
+        }
+    }
+
+    void save(Path path) throws IOException {
+        if (HEADER_BYTES + byteSize() > MAX_FILE_BYTES) {
+            throw new IOException("Поле FFD " + width + "x" + height + " больше 2 ГБ, формат это не поддерживает");
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            // Пишем блоками, чтобы не держать в памяти вторую копию таблицы
+            ByteBuffer block = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            IntBuffer ints = block.asIntBuffer();
+            for (int i = 0; i < width * height; ) {
+                int count = Math.min(ints.capacity(), width * height - i);
+                ints.clear();
+                for (int k = 0; k < count; k++) {
+                    ints.put(lookup.get(i + k));
+                }
+                block.clear().limit(count * 4);
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+                i += count;
+            }
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /** Объём таблицы индексов в байтах (для бюджета памяти кэшей). */
+    long byteSize() {
+        return 4L * width * height;
+    }
+
+    /** Применяет поле к массивам пикселей ARGB: одна выборка на пиксель. */
+    void apply(int[] src, int[] dst) {
+        int size = width * height;
+        if (src.length < size || dst.length < size) {
+            throw new IllegalArgumentException("Размер кадра не совпадает с размером поля");
+        }
+        for (int i = 0; i < size; i++) {
+            int index = lookup.get(i);
+            dst[i] = index < 0 ? 0 : src[index];
+        }
+    }
+
+    /**
+     * Применяет поле к кадру. target должен быть TYPE_INT_ARGB того же размера;
+     * scratch — буфер под пиксели кадра, переиспользуемый между кадрами (может быть null).
+     * Возвращает буфер, который стоит передать при следующем вызове.
+     */
+    int[] apply(BufferedImage frame, BufferedImage target, int[] scratch) {
+        if (frame.getWidth() != width || frame.getHeight() != height
+                || target.getWidth() != width || target.getHeight() != height) {
+            throw new IllegalArgumentException("Размер кадра не совпадает с размером поля");
+        }
+        if (target.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Целевое изображение должно быть TYPE_INT_ARGB");
+        }
+        if (scratch != null && scratch.length < width * height) {
+            scratch = null;
+        }
+        int[] src;
+        if (frame.getType() == BufferedImage.TYPE_INT_ARGB) {
+            src = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        } else {
+            src = frame.getRGB(0, 0, width, height, scratch, 0, width);
+            scratch = src;
+        }
+        apply(src, ((DataBufferInt) target.getRaster().getDataBuffer()).getData());
+        return scratch;
+    }
+}
@@ -0,0 +1,212 @@
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Решётка контрольных точек cols x rows для FFD на равномерных кубических B-сплайнах.
+ * Точки хранятся в координатах изображения; в покое они равномерно покрывают
+ * изображение от (0, 0) до (width - 1, height - 1).
+ *
+ * Текстовый формат решётки не зависит от размера изображения: строка "cols rows",
+ * затем для каждой точки (построчно) её координаты, нормированные на [0..1].
+ * Строки, начинающиеся с '#', пропускаются.
+ */
+class FFDLattice {
+    private final int cols;
+    private final int rows;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final double spacingX;
+    private final double spacingY;
+    private final double[] x;
+    private final double[] y;
+
+    FFDLattice(int cols, int rows, int imageWidth, int imageHeight) {
+        if (cols < 2 || rows < 2) {
+            throw new IllegalArgumentException("Решётка должна быть не меньше 2x2");
+        }
+        if (imageWidth < 2 || imageHeight < 2) {
+            throw new IllegalArgumentException("Изображение должно быть не меньше 2x2");
+        }
+        this.cols = cols;
+        this.rows = rows;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.spacingX = (double) (imageWidth - 1) / (cols - 1);
+        this.spacingY = (double) (imageHeight - 1) / (rows - 1);
+        this.x = new double[cols * rows];
+        this.y = new double[cols * rows];
+        reset();
+    }
+
+    /** Возвращает все точки в исходное (недеформированное) положение. */
+    void reset() {
+        for (int i = 0; i < x.length; i++) {
+            x[i] = restX(i);
+            y[i] = restY(i);
+        }
+    }
+
+    FFDLattice copy() {
+        FFDLattice copy = new FFDLattice(cols, rows, imageWidth, imageHeight);
+        System.arraycopy(x, 0, copy.x, 0, x.length);
+        System.arraycopy(y, 0, copy.y, 0, y.length);
+        return copy;
+    }
+
+    /**
+     * Та же решётка для изображения другого размера (например, уменьшенного превью):
+     * точки масштабируются вместе с изображением.
+     */
+    FFDLattice scaled(int width, int height) {
+        FFDLattice scaled = new FFDLattice(cols, rows, width, height);
+        double sx = (double) (width - 1) / (imageWidth - 1);
+        double sy = (double) (height - 1) / (imageHeight - 1);
+        for (int i = 0; i < x.length; i++) {
+            scaled.x[i] = x[i] * sx;
+            scaled.y[i] = y[i] * sy;
+        }
+        return scaled;
+    }
+
+    /** Читает решётку из текстового файла и разворачивает её на изображение заданного размера. */
+    static FFDLattice read(Path path, int imageWidth, int imageHeight) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            FFDLattice lattice = null;
+            int index = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 2) {
+                    throw new IOException("Ожидалось два числа в строке: " + line);
+                }
+                try {
+                    if (lattice == null) {
+                        lattice = new FFDLattice(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                                imageWidth, imageHeight);
+                    } else if (index < lattice.size()) {
+                        lattice.x[index] = Double.parseDouble(parts[0]) * (imageWidth - 1);
+                        lattice.y[index] = Double.parseDouble(parts[1]) * (imageHeight - 1);
+                        index++;
+                    } else {
+                        throw new IOException("Лишние точки в файле решётки: " + path);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Некорректное число в строке: " + line, e);
+                }
+            }
+            if (lattice == null || index != lattice.size()) {
+                throw new IOException("В файле решётки не хватает точек: " + path);
+            }
+            return lattice;
+        }
+    }
+
+    void write(Path path) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            out.println("# FFD lattice: cols rows, then normalized x y per point");
+            out.println(cols + " " + rows);
+            for (int i = 0; i < x.length; i++) {
+                out.println(String.format(Locale.ROOT, "%.9f %.9f",
+                        x[i] / (imageWidth - 1), y[i] / (imageHeight - 1)));
+            }
+        }
+    }
+
+    int getCols() {
+        return cols;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int size() {
+        return x.length;
+    }
+
+    int getImageWidth() {
+        return imageWidth;
+    }
+
+    int getImageHeight() {
+        return imageHeight;
+    }
+
+    double getSpacingX() {
+        return spacingX;
+    }
+
+    double getSpacingY() {
+        return spacingY;
+    }
+
+    int index(int col, int row) {
+        return row * cols + col;
+    }
+
+    double getX(int index) {
+        return x[index];
+    }
+
+    double getY(int index) {
+        return y[index];
+    }
+
+    void setPoint(int index, double px, double py) {
+        x[index] = px;
+        y[index] = py;
+    }
+
+    double restX(int index) {
+        return (index % cols) * spacingX;
+    }
+
+    double restY(int index) {
+        return (index / cols) * spacingY;
+    }
+
+    double displacementX(int index) {
+        return x[index] - restX(index);
+    }
+
+    double displacementY(int index) {
+        return y[index] - restY(index);
+    }
+
+    /**
+     * Снимок смещений узлов в массивы (cols + 2) x (rows + 2) с нулевой рамкой
+     * шириной в один узел, чтобы при свёртке не проверять границы решётки.
+     */
+    void paddedDisplacements(double[] dispX, double[] dispY) {
+        int paddedCols = cols + 2;
+        for (int i = 0; i < x.length; i++) {
+            int padded = (i / cols + 1) * paddedCols + i % cols + 1;
+            dispX[padded] = displacementX(i);
+            dispY[padded] = displacementY(i);
+        }
+    }
+
+    /**
+     * Прямоугольник пикселей, на которые влияет точка: кубический B-сплайн
+     * имеет носитель в два шага решётки в каждую сторону от узла.
+     */
+    Rectangle support(int index) {
+        int col = index % cols;
+        int row = index / cols;
+        int x0 = Math.max(0, (int) Math.floor((col - 2) * spacingX));
+        int y0 = Math.max(0, (int) Math.floor((row - 2) * spacingY));
+        int x1 = Math.min(imageWidth, (int) Math.ceil((col + 2) * spacingX) + 1);
+        int y1 = Math.min(imageHeight, (int) Math.ceil((row + 2) * spacingY) + 1);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+}
@@ -0,0 +1,205 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * FFD для изображений, которые не помещаются в память. Исходник и результат лежат
+ * в тайловых растрах (FFDTiledRaster), отображённых в память. Для каждого тайла
+ * результата считаются координаты выборки, и подгружаются только те тайлы исходника,
+ * в которые они действительно попадают; загруженные тайлы живут в небольшом LRU-кэше.
+ * В куче находятся только кэш фиксированного размера и таблицы весов по строкам и столбцам.
+ *
+ * Запуск:
+ *   java FFDOutOfCore import <изображение> <растр.ffdt> [--tile N]
+ *   java FFDOutOfCore warp <решётка.txt> <исходный.ffdt> <результат.ffdt> [--cache N]
+ *   java FFDOutOfCore export <растр.ffdt> <изображение.png>
+ */
+public class FFDOutOfCore {
+    private static final int DEFAULT_TILE_SIZE = 256;
+    private static final int DEFAULT_CACHE_TILES = 64;
+
+    private final FFDTiledRaster source;
+    private final FFDTiledRaster target;
+    private final FFDWarpEngine engine;
+    private final TileCache cache;
+
+    private long tilesLoaded;
+    private long cacheHits;
+
+    FFDOutOfCore(FFDTiledRaster source, FFDTiledRaster target, FFDLattice lattice, int cacheTiles) {
+        if (source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight()) {
+            throw new IllegalArgumentException("Размеры исходного и целевого растров различаются");
+        }
+        if (lattice.getImageWidth() != source.getWidth() || lattice.getImageHeight() != source.getHeight()) {
+            throw new IllegalArgumentException("Решётка построена для изображения другого размера");
+        }
+        this.source = source;
+        this.target = target;
+        this.engine = new FFDWarpEngine(lattice);
+        this.cache = new TileCache(cacheTiles, source.getTileSize());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            usage();
+        }
+        switch (args[0]) {
+            case "import" -> {
+                int tile = args.length > 4 && args[3].equals("--tile") ? Integer.parseInt(args[4]) : DEFAULT_TILE_SIZE;
+                if (tile <= 0 || tile > FFDTiledRaster.MAX_TILE_SIZE) {
+                    throw new IllegalArgumentException("Размер тайла должен быть от 1 до " + FFDTiledRaster.MAX_TILE_SIZE);
+                }
+                BufferedImage image = ImageIO.read(new File(args[1]));
+                if (image == null) {
+                    throw new IOException("Неизвестный формат изображения: " + args[1]);
+                }
+                FFDTiledRaster.importImage(image, Paths.get(args[2]), tile);
+            }
+            case "export" -> {
+                try (FFDTiledRaster raster = FFDTiledRaster.open(Paths.get(args[1]), false)) {
+                    ImageIO.write(raster.toImage(), "png", new File(args[2]));
+                }
+            }
+            case "warp" -> {
+                if (args.length < 4) {
+                    usage();
+                }
+                int cacheTiles = args.length > 5 && args[4].equals("--cache")
+                        ? Integer.parseInt(args[5]) : DEFAULT_CACHE_TILES;
+                warp(Paths.get(args[1]), Paths.get(args[2]), Paths.get(args[3]), cacheTiles);
+            }
+            default -> usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Использование:");
+        System.err.println("  java FFDOutOfCore import <изображение> <растр.ffdt> [--tile N]");
+        System.err.println("  java FFDOutOfCore warp <решётка.txt> <исходный.ffdt> <результат.ffdt> [--cache N]");
+        System.err.println("  java FFDOutOfCore export <растр.ffdt> <изображение.png>");
+        System.exit(1);
+    }
+
+    private static void warp(Path latticePath, Path sourcePath, Path targetPath, int cacheTiles) throws IOException {
+        try (FFDTiledRaster source = FFDTiledRaster.open(sourcePath, false);
+             FFDTiledRaster target = FFDTiledRaster.create(targetPath, source.getWidth(), source.getHeight(),
+                     source.getTileSize())) {
+            FFDLattice lattice = FFDLattice.read(latticePath, source.getWidth(), source.getHeight());
+            FFDOutOfCore warper = new FFDOutOfCore(source, target, lattice, cacheTiles);
+
+            long start = System.nanoTime();
+            warper.run();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long pixels = (long) source.getWidth() * source.getHeight();
+            System.out.printf(Locale.ROOT, "%dx%d за %.2f с (%.1f Мпикс/с), тайлов загружено: %d, попаданий в кэш: %d%n",
+                    source.getWidth(), source.getHeight(), seconds, pixels / 1e6 / seconds,
+                    warper.tilesLoaded, warper.cacheHits);
+        }
+    }
+
+    /** Деформирует растр тайл за тайлом. */
+    void run() {
+        int tileSize = target.getTileSize();
+        int[] srcX = new int[tileSize * tileSize];
+        int[] srcY = new int[tileSize * tileSize];
+        int[] out = new int[tileSize * tileSize];
+
+        for (int ty = 0; ty < target.getTilesY(); ty++) {
+            for (int tx = 0; tx < target.getTilesX(); tx++) {
+                int x0 = tx * tileSize;
+                int y0 = ty * tileSize;
+                int x1 = Math.min(x0 + tileSize, target.getWidth());
+                int y1 = Math.min(y0 + tileSize, target.getHeight());
+                engine.mapTile(x0, y0, x1, y1, srcX, srcY);
+                warpTile(x1 - x0, y1 - y0, srcX, srcY, out);
+                target.writeTile(tx, ty, out);
+            }
+        }
+    }
+
+    private void warpTile(int w, int h, int[] srcX, int[] srcY, int[] out) {
+        int tileSize = source.getTileSize();
+        // Соседние пиксели почти всегда попадают в один тайл исходника, запоминаем последний
+        int lastTx = -1;
+        int lastTy = -1;
+        int[] tile = null;
+
+        for (int y = 0; y < tileSize; y++) {
+            for (int x = 0; x < tileSize; x++) {
+                int o = y * tileSize + x;
+                if (x >= w || y >= h) {
+                    out[o] = 0; // дополнение крайних тайлов
+                    continue;
+                }
+                int i = y * w + x;
+                int sx = srcX[i];
+                int sy = srcY[i];
+                if (sx < 0) {
+                    out[o] = 0; // Прозрачный/черный за границами
+                    continue;
+                }
+                int stx = sx / tileSize;
+                int sty = sy / tileSize;
+                if (stx != lastTx || sty != lastTy) {
+                    tile = sourceTile(stx, sty);
+                    lastTx = stx;
+                    lastTy = sty;
+                }
+                out[o] = tile[(sy - sty * tileSize) * tileSize + (sx - stx * tileSize)];
+            }
+        }
+    }
+
+    private int[] sourceTile(int tx, int ty) {
+        long key = (long) ty * source.getTilesX() + tx;
+        int[] tile = cache.get(key);
+        if (tile != null) {
+            cacheHits++;
+            return tile;
+        }
+        tile = cache.allocate();
+        source.readTile(tx, ty, tile);
+        cache.put(key, tile);
+        tilesLoaded++;
+        return tile;
+    }
+
+    /**
+     * LRU-кэш тайлов исходника. Массивы вытесненных тайлов переиспользуются,
+     * так что после прогрева кэш больше ничего не выделяет.
+     */
+    @SuppressWarnings("serial")
+    private static final class TileCache extends LinkedHashMap<Long, int[]> {
+        private final int capacity;
+        private final int tileInts;
+        private final List<int[]> free = new ArrayList<>();
+
+        TileCache(int capacity, int tileSize) {
+            super(16, 0.75f, true);
+            this.capacity = Math.max(1, capacity);
+            this.tileInts = tileSize * tileSize;
+        }
+
+        int[] allocate() {
+            return free.isEmpty() ? new int[tileInts] : free.remove(free.size() - 1);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            if (size() > capacity) {
+                free.add(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Фоновый поток отрисовки для интерактивного FFD.
+ * Запросы от мыши не ставятся в очередь: новый запрос заменяет ещё не начатый,
+ * так что рисуется только самая свежая конфигурация точек и вида (latest wins).
+ * Сначала считается быстрое превью в уменьшенном разрешении, а когда ввод
+ * затихает, накопленная грязная область пересчитывается в экранном разрешении.
+ * Рисуется только видимая часть изображения (см. FFDViewportRenderer).
+ */
+class FFDRenderWorker {
+    private static final long IDLE_NANOS = Long.getLong("ffd.idleMs", 150) * 1_000_000L;
+    private static final long LATENCY_TARGET_NANOS = Long.getLong("ffd.latencyTargetMs", 33) * 1_000_000L;
+
+    private final FFDViewportRenderer renderer;
+    private final int previewScale;
+    private final Runnable repaint;
+    private final Thread thread;
+
+    // Кадр в экранном разрешении пишется на месте; превью с двойной буферизацией:
+    // поток пишет в back, EDT рисует front. Буфер и номер последнего снимка, где он
+    // был показан, знает только поток отрисовки
+    private volatile BufferedImage frame;
+    private BufferedImage previewFront;
+    private long previewFrontSequence;
+    private BufferedImage previewBack;
+    private long previewBackSequence;
+    private long previewSequence;
+
+    private final Object lock = new Object();
+    private Request pending; // guarded by lock
+    private int parallelism = 1; // guarded by lock
+    private FFDSampler.Filter filter = FFDSampler.Filter.NEAREST; // guarded by lock
+    private boolean running = true; // guarded by lock
+
+    // Превью для EDT: картинка и область вместе, одним снимком
+    private final AtomicReference<Preview> preview = new AtomicReference<>();
+    // Номер последнего снимка превью, который EDT вывел (пишет только EDT). Когда он не
+    // меньше номера снимка, где был показан буфер, EDT этот буфер уже не читает
+    private volatile long presentedSequence;
+    // Время самого старого ввода, ещё не доведённого до пикселей, отдельно для превью и
+    // полного кадра (0 — нет). Поток отрисовки ставит его, только если там 0, EDT забирает и обнуляет
+    private final AtomicLong unpresentedPreview = new AtomicLong();
+    private final AtomicLong unpresentedFull = new AtomicLong();
+
+    private final LatencyStats previewLatency = new LatencyStats(LATENCY_TARGET_NANOS);
+    private final LatencyStats fullLatency = new LatencyStats(LATENCY_TARGET_NANOS);
+
+    /**
+     * Неизменяемый снимок превью: image в уменьшенном разрешении и экранная область region,
+     * где кадр устарел и поверх него нужно рисовать превью. region == null — превью не нужно.
+     */
+    static final class Preview {
+        final BufferedImage image;
+        final Rectangle region;
+        final long sequence;
+
+        Preview(BufferedImage image, Rectangle region, long sequence) {
+            this.image = image;
+            this.region = region;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Request {
+        final FFDLattice lattice;
+        final Rectangle dirty; // в координатах изображения, null — всё
+        final FFDViewportRenderer.View view;
+        final int viewWidth;
+        final int viewHeight;
+        final long inputNanos;
+
+        Request(FFDLattice lattice, Rectangle dirty, FFDViewportRenderer.View view,
+                int viewWidth, int viewHeight, long inputNanos) {
+            this.lattice = lattice;
+            this.dirty = dirty;
+            this.view = view;
+            this.viewWidth = viewWidth;
+            this.viewHeight = viewHeight;
+            this.inputNanos = inputNanos;
+        }
+    }
+
+    /**
+     * @param previewScale во сколько раз по каждой оси уменьшено превью
+     * @param repaint      вызывается из потока отрисовки, когда готов новый кадр
+     */
+    FFDRenderWorker(BufferedImage original, int previewScale, Runnable repaint) {
+        this.renderer = new FFDViewportRenderer(original);
+        this.previewScale = previewScale;
+        this.repaint = repaint;
+
+        thread = new Thread(this::run, "ffd-render");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Передаёт снимок решётки и вида на отрисовку. Вызывается из EDT на каждое событие;
+     * если предыдущий запрос ещё не взят в работу, он поглощается новым.
+     *
+     * @param dirty изменившаяся область изображения или null, если перерисовать нужно всё
+     */
+    void submit(FFDLattice snapshot, Rectangle dirty, FFDViewportRenderer.View view,
+                int viewWidth, int viewHeight) {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            if (pending != null) {
+                // Сохраняем объединение грязных областей и время самого старого ввода
+                dirty = dirty == null || pending.dirty == null ? null : dirty.union(pending.dirty);
+                now = pending.inputNanos;
+            }
+            pending = new Request(snapshot, dirty, view, viewWidth, viewHeight, now);
+            lock.notifyAll();
+        }
+    }
+
+    void setParallelism(int parallelism) {
+        synchronized (lock) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    /** Фильтр для кадра в экранном разрешении; превью всегда берёт ближайший пиксель. */
+    void setFilter(FFDSampler.Filter filter) {
+        synchronized (lock) {
+            this.filter = filter;
+        }
+    }
+
+    void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    /** Кадр видимой области в экранном разрешении (может быть null до первой отрисовки). */
+    BufferedImage getFrame() {
+        return frame;
+    }
+
+    /** Последний снимок превью (null до первой отрисовки); после вывода его нужно вернуть в framePresented. */
+    Preview getPreview() {
+        return preview.get();
+    }
+
+    int getPreviewScale() {
+        return previewScale;
+    }
+
+    /**
+     * Вызывается из paintComponent: кадр дошёл до экрана, фиксируем задержку ввод -> пиксели
+     * и отпускаем буферы превью старше выведенного снимка shown (может быть null).
+     */
+    void framePresented(Preview shown) {
+        if (shown != null) {
+            presentedSequence = shown.sequence;
+        }
+        long now = System.nanoTime();
+        long input = unpresentedPreview.getAndSet(0);
+        if (input != 0) {
+            previewLatency.record(now - input);
+        }
+        input = unpresentedFull.getAndSet(0);
+        if (input != 0) {
+            fullLatency.record(now - input);
+        }
+    }
+
+    LatencyStats getPreviewLatency() {
+        return previewLatency;
+    }
+
+    LatencyStats getFullLatency() {
+        return fullLatency;
+    }
+
+    private void run() {
+        // Последние отрисованные решётка и вид, экранная область кадра, устаревшая относительно превью
+        FFDLattice lattice = null;
+        FFDViewportRenderer.View view = null;
+        Rectangle staleRegion = null;
+        long staleInput = 0;
+        FFDSampler.Filter fullFilter;
+
+        while (true) {
+            Request request;
+            synchronized (lock) {
+                long idleDeadline = System.nanoTime() + IDLE_NANOS;
+                while (running && pending == null) {
+                    long wait = idleDeadline - System.nanoTime();
+                    if (staleRegion != null && wait <= 0) {
+                        break;
+                    }
+                    try {
+                        if (staleRegion != null) {
+                            lock.wait(Math.max(1, wait / 1_000_000L));
+                        } else {
+                            lock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                request = pending;
+                pending = null;
+                renderer.setParallelism(parallelism);
+                fullFilter = filter;
+            }
+
+            if (request == null) {
+                // Ввод затих: доводим устаревшую область до экранного разрешения
+                BufferedImage target = frame;
+                renderer.render(lattice, view, pixels(target), target.getWidth(), staleRegion, 1, fullFilter);
+                preview.set(new Preview(null, null, ++previewSequence));
+                publish(staleInput, false);
+                staleRegion = null;
+                continue;
+            }
+
+            Rectangle screen = new Rectangle(0, 0, request.viewWidth, request.viewHeight);
+            BufferedImage target = frame;
+            if (target == null || target.getWidth() != request.viewWidth
+                    || target.getHeight() != request.viewHeight) {
+                // Размер панели поменялся: новые буферы, перерисовать всё
+                frame = new BufferedImage(request.viewWidth, request.viewHeight, BufferedImage.TYPE_INT_ARGB);
+                int pw = Math.max(1, (request.viewWidth + previewScale - 1) / previewScale);
+                int ph = Math.max(1, (request.viewHeight + previewScale - 1) / previewScale);
+                previewFront = new BufferedImage(pw, ph, BufferedImage.TYPE_INT_ARGB);
+                previewBack = new BufferedImage(pw, ph, BufferedImage.TYPE_INT_ARGB);
+                previewFrontSequence = 0;
+                previewBackSequence = 0;
+                staleRegion = screen;
+            }
+
+            Rectangle dirty = request.dirty == null || !request.view.sameAs(view)
+                    ? screen : request.view.toScreen(request.dirty).intersection(screen);
+            staleRegion = staleRegion == null ? dirty : staleRegion.union(dirty);
+            // Задержку полного кадра считаем от последнего ввода: она включает паузу IDLE_NANOS
+            staleInput = request.inputNanos;
+            lattice = request.lattice;
+            view = request.view;
+
+            // Быстрый проход в уменьшенном разрешении по всей видимой области
+            BufferedImage back = previewBack;
+            if (presentedSequence < previewBackSequence) {
+                // EDT ещё не подтвердил, что закончил с этим буфером: пишем в новый
+                back = new BufferedImage(back.getWidth(), back.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            }
+            renderer.render(lattice, view, pixels(back), back.getWidth(),
+                    new Rectangle(0, 0, back.getWidth(), back.getHeight()), previewScale,
+                    FFDSampler.Filter.NEAREST);
+            preview.set(new Preview(back, new Rectangle(staleRegion), ++previewSequence));
+            previewBack = previewFront;
+            previewBackSequence = previewFrontSequence;
+            previewFront = back;
+            previewFrontSequence = previewSequence;
+            publish(request.inputNanos, true);
+        }
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private void publish(long inputNanos, boolean isPreview) {
+        (isPreview ? unpresentedPreview : unpresentedFull).compareAndSet(0, inputNanos);
+        repaint.run();
+    }
+
+    /** Счётчики задержки от события ввода до отрисовки кадра. */
+    static final class LatencyStats {
+        private final long targetNanos;
+        private long frames;
+        private long totalNanos;
+        private long maxNanos;
+        private long lastNanos;
+        private long overTarget;
+
+        LatencyStats(long targetNanos) {
+            this.targetNanos = targetNanos;
+        }
+
+        synchronized void record(long nanos) {
+            frames++;
+            totalNanos += nanos;
+            lastNanos = nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            if (nanos > targetNanos) {
+                overTarget++;
+            }
+        }
+
+        synchronized long getFrames() {
+            return frames;
+        }
+
+        synchronized long getOverTarget() {
+            return overTarget;
+        }
+
+        synchronized String summary() {
+            if (frames == 0) {
+                return "нет кадров";
+            }
+            return String.format("посл. %.1f мс, сред. %.1f мс, макс. %.1f мс, > %d мс: %d из %d",
+                    lastNanos / 1e6, totalNanos / 1e6 / frames, maxNanos / 1e6,
+                    targetNanos / 1_000_000L, overTarget, frames);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Выборка цвета из массива пикселей ARGB в дробной точке: ближайший пиксель,
+ * билинейная и бикубическая (Катмулл-Ром) интерполяция.
+ *
+ * Основной путь целочисленный, с фиксированной точкой (8 бит дробной части).
+ * В билинейной интерполяции каналы R|B и A|G обрабатываются парами в одном int,
+ * так что на пиксель уходит по два умножения на отрезок вместо восьми.
+ * Запасной скалярный путь в double включается через -Dffd.scalarSampler=true
+ * и нужен в основном для сравнения.
+ */
+class FFDSampler {
+    enum Filter {
+        NEAREST("Ближайший"),
+        BILINEAR("Билинейный"),
+        BICUBIC("Бикубический");
+
+        private final String label;
+
+        Filter(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final boolean FIXED_POINT = !Boolean.getBoolean("ffd.scalarSampler");
+    private static final int FRACTION_BITS = 8;
+    private static final int ONE = 1 << FRACTION_BITS;
+    private static final int FRACTION_MASK = ONE - 1;
+    // Округление при сдвиге сразу для двух каналов в одном int
+    private static final int PAIR_ROUND = 0x00800080;
+
+    // Веса ядра Катмулла-Рома для каждого из ONE дробных положений, сумма четырёх весов равна ONE
+    private static final int[] CUBIC_WEIGHTS = new int[4 * ONE];
+
+    static {
+        for (int f = 0; f < ONE; f++) {
+            double t = f / (double) ONE;
+            int w0 = (int) Math.round(cubic(1 + t) * ONE);
+            int w1 = (int) Math.round(cubic(t) * ONE);
+            int w2 = (int) Math.round(cubic(1 - t) * ONE);
+            int w3 = (int) Math.round(cubic(2 - t) * ONE);
+            // Ошибку округления отдаём ближайшему отсчёту, чтобы однотонная область не меняла цвет
+            int error = ONE - (w0 + w1 + w2 + w3);
+            if (t < 0.5) {
+                w1 += error;
+            } else {
+                w2 += error;
+            }
+            CUBIC_WEIGHTS[4 * f] = w0;
+            CUBIC_WEIGHTS[4 * f + 1] = w1;
+            CUBIC_WEIGHTS[4 * f + 2] = w2;
+            CUBIC_WEIGHTS[4 * f + 3] = w3;
+        }
+    }
+
+    private FFDSampler() {
+    }
+
+    /**
+     * Заполняет out[offset .. offset + count) цветами в точках (xs[i], ys[i]).
+     * Точки вне изображения (та же граница, что и у ближайшего пикселя) дают прозрачный 0.
+     * Фильтр и путь выбираются один раз на отрезок, у каждого свой цикл.
+     */
+    static void sampleRun(int[] src, int width, int height, Filter filter,
+                          double[] xs, double[] ys, int[] out, int offset, int count) {
+        if (filter == Filter.NEAREST) {
+            nearestRun(src, width, height, xs, ys, out, offset, count);
+        } else if (!FIXED_POINT) {
+            scalarRun(src, width, height, filter == Filter.BICUBIC, xs, ys, out, offset, count);
+        } else if (filter == Filter.BILINEAR) {
+            bilinearRun(src, width, height, xs, ys, out, offset, count);
+        } else {
+            bicubicRun(src, width, height, xs, ys, out, offset, count);
+        }
+    }
+
+    private static void nearestRun(int[] src, int width, int height,
+                                   double[] xs, double[] ys, int[] out, int offset, int count) {
+        double maxX = width - 0.5;
+        double maxY = height - 0.5;
+        for (int i = 0; i < count; i++) {
+            double sx = xs[i];
+            double sy = ys[i];
+            if (sx >= -0.5 && sx < maxX && sy >= -0.5 && sy < maxY) {
+                int x = Math.min(width - 1, (int) (sx + 0.5));
+                int y = Math.min(height - 1, (int) (sy + 0.5));
+                out[offset + i] = src[y * width + x];
+            } else {
+                out[offset + i] = 0; // Прозрачный/черный за границами
+            }
+        }
+    }
+
+    private static void bilinearRun(int[] src, int width, int height,
+                                    double[] xs, double[] ys, int[] out, int offset, int count) {
+        double maxX = width - 0.5;
+        double maxY = height - 0.5;
+        for (int i = 0; i < count; i++) {
+            double sx = xs[i];
+            double sy = ys[i];
+            if (sx >= -0.5 && sx < maxX && sy >= -0.5 && sy < maxY) {
+                out[offset + i] = bilinearFixed(src, width, height, sx, sy);
+            } else {
+                out[offset + i] = 0;
+            }
+        }
+    }
+
+    private static void bicubicRun(int[] src, int width, int height,
+                                   double[] xs, double[] ys, int[] out, int offset, int count) {
+        double maxX = width - 0.5;
+        double maxY = height - 0.5;
+        for (int i = 0; i < count; i++) {
+            double sx = xs[i];
+            double sy = ys[i];
+            if (sx >= -0.5 && sx < maxX && sy >= -0.5 && sy < maxY) {
+                out[offset + i] = bicubicFixed(src, width, height, sx, sy);
+            } else {
+                out[offset + i] = 0;
+            }
+        }
+    }
+
+    /** Запасной путь в double; bicubic не меняется внутри отрезка, так что ветвление по нему предсказуемо. */
+    private static void scalarRun(int[] src, int width, int height, boolean bicubic,
+                                  double[] xs, double[] ys, int[] out, int offset, int count) {
+        double maxX = width - 0.5;
+        double maxY = height - 0.5;
+        for (int i = 0; i < count; i++) {
+            double sx = xs[i];
+            double sy = ys[i];
+            if (sx >= -0.5 && sx < maxX && sy >= -0.5 && sy < maxY) {
+                out[offset + i] = bicubic ? bicubicScalar(src, width, height, sx, sy)
+                        : bilinearScalar(src, width, height, sx, sy);
+            } else {
+                out[offset + i] = 0;
+            }
+        }
+    }
+
+    /** Выборка в точке, про которую уже известно, что она внутри изображения; отсчёты у края повторяются. */
+    static int sampleInside(int[] src, int width, int height, Filter filter, double sx, double sy) {
+        switch (filter) {
+            case BILINEAR:
+                return FIXED_POINT ? bilinearFixed(src, width, height, sx, sy) : bilinearScalar(src, width, height, sx, sy);
+            case BICUBIC:
+                return FIXED_POINT ? bicubicFixed(src, width, height, sx, sy) : bicubicScalar(src, width, height, sx, sy);
+            default:
+                int x = Math.min(width - 1, (int) (sx + 0.5));
+                int y = Math.min(height - 1, (int) (sy + 0.5));
+                return src[y * width + x];
+        }
+    }
+
+    private static int bilinearFixed(int[] src, int width, int height, double sx, double sy) {
+        int fx = (int) Math.floor(sx * ONE);
+        int fy = (int) Math.floor(sy * ONE);
+        int ax = fx & FRACTION_MASK;
+        int ay = fy & FRACTION_MASK;
+        int x0 = clamp(fx >> FRACTION_BITS, width);
+        int x1 = clamp((fx >> FRACTION_BITS) + 1, width);
+        int row0 = clamp(fy >> FRACTION_BITS, height) * width;
+        int row1 = clamp((fy >> FRACTION_BITS) + 1, height) * width;
+
+        int top = lerp(src[row0 + x0], src[row0 + x1], ax);
+        int bottom = lerp(src[row1 + x0], src[row1 + x1], ax);
+        return lerp(top, bottom, ay);
+    }
+
+    /**
+     * Линейная интерполяция двух пикселей ARGB, t в диапазоне 0..ONE.
+     * Каналы разнесены по 16-битным полям (0x00FF00FF), произведение канала на вес
+     * не выходит за 0xFF00 и не переносится в соседний канал.
+     */
+    private static int lerp(int a, int b, int t) {
+        int s = ONE - t;
+        int rb = (a & 0x00FF00FF) * s + (b & 0x00FF00FF) * t + PAIR_ROUND;
+        int ag = ((a >>> 8) & 0x00FF00FF) * s + ((b >>> 8) & 0x00FF00FF) * t + PAIR_ROUND;
+        return ((rb >>> FRACTION_BITS) & 0x00FF00FF) | (ag & 0xFF00FF00);
+    }
+
+    private static int bicubicFixed(int[] src, int width, int height, double sx, double sy) {
+        int fx = (int) Math.floor(sx * ONE);
+        int fy = (int) Math.floor(sy * ONE);
+        int ix = fx >> FRACTION_BITS;
+        int iy = fy >> FRACTION_BITS;
+        int wx = 4 * (fx & FRACTION_MASK);
+        int wy = 4 * (fy & FRACTION_MASK);
+        int x0 = clamp(ix - 1, width);
+        int x1 = clamp(ix, width);
+        int x2 = clamp(ix + 1, width);
+        int x3 = clamp(ix + 2, width);
+        int kx0 = CUBIC_WEIGHTS[wx];
+        int kx1 = CUBIC_WEIGHTS[wx + 1];
+        int kx2 = CUBIC_WEIGHTS[wx + 2];
+        int kx3 = CUBIC_WEIGHTS[wx + 3];
+
+        // Сначала свёртка по x в каждой из четырёх строк, затем по y; веса отрицательные
+        // на краях ядра, поэтому каналы считаются по отдельности и зажимаются в конце
+        int a = 0;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int j = 0; j < 4; j++) {
+            int row = clamp(iy - 1 + j, height) * width;
+            int p0 = src[row + x0];
+            int p1 = src[row + x1];
+            int p2 = src[row + x2];
+            int p3 = src[row + x3];
+            int ky = CUBIC_WEIGHTS[wy + j];
+            a += ky * (kx0 * (p0 >>> 24) + kx1 * (p1 >>> 24) + kx2 * (p2 >>> 24) + kx3 * (p3 >>> 24));
+            r += ky * (kx0 * ((p0 >> 16) & 0xFF) + kx1 * ((p1 >> 16) & 0xFF)
+                    + kx2 * ((p2 >> 16) & 0xFF) + kx3 * ((p3 >> 16) & 0xFF));
+            g += ky * (kx0 * ((p0 >> 8) & 0xFF) + kx1 * ((p1 >> 8) & 0xFF)
+                    + kx2 * ((p2 >> 8) & 0xFF) + kx3 * ((p3 >> 8) & 0xFF));
+            b += ky * (kx0 * (p0 & 0xFF) + kx1 * (p1 & 0xFF) + kx2 * (p2 & 0xFF) + kx3 * (p3 & 0xFF));
+        }
+        int round = 1 << (2 * FRACTION_BITS - 1);
+        return channel((a + round) >> (2 * FRACTION_BITS)) << 24
+                | channel((r + round) >> (2 * FRACTION_BITS)) << 16
+                | channel((g + round) >> (2 * FRACTION_BITS)) << 8
+                | channel((b + round) >> (2 * FRACTION_BITS));
+    }
+
+    private static int bilinearScalar(int[] src, int width, int height, double sx, double sy) {
+        int ix = (int) Math.floor(sx);
+        int iy = (int) Math.floor(sy);
+        double tx = sx - ix;
+        double ty = sy - iy;
+        int x0 = clamp(ix, width);
+        int x1 = clamp(ix + 1, width);
+        int row0 = clamp(iy, height) * width;
+        int row1 = clamp(iy + 1, height) * width;
+        int p00 = src[row0 + x0];
+        int p01 = src[row0 + x1];
+        int p10 = src[row1 + x0];
+        int p11 = src[row1 + x1];
+
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            double top = ((p00 >>> shift) & 0xFF) * (1 - tx) + ((p01 >>> shift) & 0xFF) * tx;
+            double bottom = ((p10 >>> shift) & 0xFF) * (1 - tx) + ((p11 >>> shift) & 0xFF) * tx;
+            result |= channel((int) Math.round(top * (1 - ty) + bottom * ty)) << shift;
+        }
+        return result;
+    }
+
+    private static int bicubicScalar(int[] src, int width, int height, double sx, double sy) {
+        int ix = (int) Math.floor(sx);
+        int iy = (int) Math.floor(sy);
+        double tx = sx - ix;
+        double ty = sy - iy;
+
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            double sum = 0;
+            for (int j = -1; j <= 2; j++) {
+                int row = clamp(iy + j, height) * width;
+                double line = 0;
+                for (int i = -1; i <= 2; i++) {
+                    line += cubic(i - tx) * ((src[row + clamp(ix + i, width)] >>> shift) & 0xFF);
+                }
+                sum += cubic(j - ty) * line;
+            }
+            result |= channel((int) Math.round(sum)) << shift;
+        }
+        return result;
+    }
+
+    /** Ядро Катмулла-Рома (кубическая свёртка с a = -0.5). */
+    private static double cubic(double t) {
+        t = Math.abs(t);
+        if (t < 1) {
+            return (1.5 * t - 2.5) * t * t + 1;
+        }
+        if (t < 2) {
+            return ((-0.5 * t + 2.5) * t - 4) * t + 2;
+        }
+        return 0;
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : Math.min(i, size - 1);
+    }
+
+    private static int channel(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+}
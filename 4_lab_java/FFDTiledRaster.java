@@ -0,0 +1,209 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Растр ARGB в файле, разбитый на квадратные тайлы и отображённый в память.
+ * Пиксели не лежат в куче: тайлы читаются и пишутся прямо через отображение,
+ * поэтому размер изображения ограничен только диском.
+ *
+ * Формат (little-endian): "FFDT", версия, ширина, высота, размер тайла, заголовок
+ * дополнен нулями до DATA_OFFSET; затем тайлы построчно, каждый tileSize * tileSize
+ * значений int32 (крайние тайлы дополняются нулями до полного размера).
+ */
+class FFDTiledRaster implements Closeable {
+    private static final int MAGIC = 0x54444646; // "FFDT" в little-endian
+    private static final int VERSION = 1;
+    private static final int DATA_OFFSET = 64;
+    // Отображение делится на сегменты, каждый из целого числа тайлов и не больше 1 ГБ
+    private static final long SEGMENT_LIMIT = 1L << 30;
+    // Самый большой тайл, который целиком помещается в сегмент: 4 * 16384 * 16384 = 1 ГБ
+    static final int MAX_TILE_SIZE = 16384;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final int tilesPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    private FFDTiledRaster(FileChannel channel, boolean writable, int width, int height, int tileSize)
+            throws IOException {
+        this.channel = channel;
+        this.writable = writable;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+
+        long tileBytes = 4L * tileSize * tileSize;
+        this.tilesPerSegment = (int) Math.max(1, SEGMENT_LIMIT / tileBytes);
+        long tiles = (long) tilesX * tilesY;
+        this.segments = new MappedByteBuffer[(int) ((tiles + tilesPerSegment - 1) / tilesPerSegment)];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < segments.length; i++) {
+            long first = (long) i * tilesPerSegment;
+            long count = Math.min(tilesPerSegment, tiles - first);
+            segments[i] = channel.map(mode, DATA_OFFSET + first * tileBytes, count * tileBytes);
+        }
+    }
+
+    /** Создаёт новый растр, заполненный нулями (прозрачным). */
+    static FFDTiledRaster create(Path path, int width, int height, int tileSize) throws IOException {
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Размеры растра должны быть положительными");
+        }
+        if (tileSize > MAX_TILE_SIZE) {
+            throw new IllegalArgumentException("Размер тайла " + tileSize + " больше " + MAX_TILE_SIZE);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(tileSize);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            return new FFDTiledRaster(channel, true, width, height, tileSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static FFDTiledRaster open(Path path, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // читаем заголовок целиком
+            }
+            if (header.position() < DATA_OFFSET || header.getInt(0) != MAGIC) {
+                throw new IOException("Файл не является тайловым растром FFD: " + path);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Неподдерживаемая версия растра: " + header.getInt(4));
+            }
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int tileSize = header.getInt(16);
+            if (width <= 0 || height <= 0 || tileSize <= 0) {
+                throw new IOException("Недопустимые размеры растра " + width + "x" + height
+                        + ", тайл " + tileSize + ": " + path);
+            }
+            if (tileSize > MAX_TILE_SIZE) {
+                throw new IOException("Размер тайла " + tileSize + " больше " + MAX_TILE_SIZE + ": " + path);
+            }
+            // Сравниваем число тайлов, а не байты: произведение в байтах может переполнить long
+            long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+            long tileBytes = 4L * tileSize * tileSize;
+            long dataBytes = channel.size() - DATA_OFFSET;
+            if (dataBytes % tileBytes != 0 || dataBytes / tileBytes != tiles) {
+                throw new IOException("Размер файла не совпадает с заголовком: " + path);
+            }
+            return new FFDTiledRaster(channel, writable, width, height, tileSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int getTilesX() {
+        return tilesX;
+    }
+
+    int getTilesY() {
+        return tilesY;
+    }
+
+    /** Копирует тайл (tx, ty) в out (tileSize * tileSize значений, построчно). */
+    void readTile(int tx, int ty, int[] out) {
+        tileBuffer(tx, ty).get(out, 0, tileSize * tileSize);
+    }
+
+    void writeTile(int tx, int ty, int[] in) {
+        if (!writable) {
+            throw new IllegalStateException("Растр открыт только для чтения");
+        }
+        tileBuffer(tx, ty).put(in, 0, tileSize * tileSize);
+    }
+
+    private IntBuffer tileBuffer(int tx, int ty) {
+        long tile = (long) ty * tilesX + tx;
+        MappedByteBuffer segment = segments[(int) (tile / tilesPerSegment)];
+        int tileBytes = 4 * tileSize * tileSize;
+        int offset = (int) (tile % tilesPerSegment) * tileBytes;
+        return segment.slice(offset, tileBytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /** Записывает изображение (которое помещается в память) в новый тайловый растр. */
+    static void importImage(BufferedImage image, Path path, int tileSize) throws IOException {
+        try (FFDTiledRaster raster = create(path, image.getWidth(), image.getHeight(), tileSize)) {
+            int[] tile = new int[tileSize * tileSize];
+            for (int ty = 0; ty < raster.tilesY; ty++) {
+                for (int tx = 0; tx < raster.tilesX; tx++) {
+                    int x0 = tx * tileSize;
+                    int y0 = ty * tileSize;
+                    int w = Math.min(tileSize, image.getWidth() - x0);
+                    int h = Math.min(tileSize, image.getHeight() - y0);
+                    Arrays.fill(tile, 0);
+                    image.getRGB(x0, y0, w, h, tile, 0, tileSize);
+                    raster.writeTile(tx, ty, tile);
+                }
+            }
+        }
+    }
+
+    /** Собирает растр в BufferedImage; годится только для растров, которые помещаются в память. */
+    BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] tile = new int[tileSize * tileSize];
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int x0 = tx * tileSize;
+                int y0 = ty * tileSize;
+                readTile(tx, ty, tile);
+                image.setRGB(x0, y0, Math.min(tileSize, width - x0), Math.min(tileSize, height - y0),
+                        tile, 0, tileSize);
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writable) {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+        channel.close();
+    }
+}
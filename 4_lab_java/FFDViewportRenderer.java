@@ -0,0 +1,299 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Отрисовка FFD только для видимой области панели и в экранном разрешении.
+ * Для каждого экранного пикселя находится точка изображения (с учётом масштаба и сдвига),
+ * в ней вычисляется B-сплайновое смещение, а цвет берётся из уровня mip-пирамиды
+ * оригинала, подходящего к текущему масштабу. Полноразмерная деформация нужна только
+ * при экспорте (см. FFDWarpEngine).
+ */
+class FFDViewportRenderer {
+    private static final int BAND_HEIGHT = 32;
+
+    /** Масштаб и сдвиг: экранная точка = pan + точка изображения * zoom. */
+    static final class View {
+        final double zoom;
+        final double panX;
+        final double panY;
+
+        View(double zoom, double panX, double panY) {
+            this.zoom = zoom;
+            this.panX = panX;
+            this.panY = panY;
+        }
+
+        double toScreenX(double x) {
+            return panX + x * zoom;
+        }
+
+        double toScreenY(double y) {
+            return panY + y * zoom;
+        }
+
+        double toImageX(double sx) {
+            return (sx - panX) / zoom;
+        }
+
+        double toImageY(double sy) {
+            return (sy - panY) / zoom;
+        }
+
+        /** Экранный прямоугольник, покрывающий прямоугольник изображения. */
+        Rectangle toScreen(Rectangle r) {
+            int x0 = (int) Math.floor(toScreenX(r.x)) - 1;
+            int y0 = (int) Math.floor(toScreenY(r.y)) - 1;
+            int x1 = (int) Math.ceil(toScreenX(r.x + r.width)) + 1;
+            int y1 = (int) Math.ceil(toScreenY(r.y + r.height)) + 1;
+            return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        }
+
+        boolean sameAs(View other) {
+            return other != null && zoom == other.zoom && panX == other.panX && panY == other.panY;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    // Уровни mip-пирамиды: 0 — оригинал, каждый следующий вдвое меньше
+    private final List<int[]> levels = new ArrayList<>();
+    private final List<int[]> levelSizes = new ArrayList<>();
+
+    private ForkJoinPool pool;
+
+    FFDViewportRenderer(BufferedImage original) {
+        width = original.getWidth();
+        height = original.getHeight();
+
+        int[] level = original.getRGB(0, 0, width, height, null, 0, width);
+        int w = width;
+        int h = height;
+        levels.add(level);
+        levelSizes.add(new int[]{w, h});
+        while (w > 1 || h > 1) {
+            int nw = Math.max(1, w / 2);
+            int nh = Math.max(1, h / 2);
+            level = downsample(level, w, h, nw, nh);
+            w = nw;
+            h = nh;
+            levels.add(level);
+            levelSizes.add(new int[]{w, h});
+        }
+    }
+
+    /** Усреднение блоков 2x2 по каждому каналу ARGB. */
+    private static int[] downsample(int[] src, int w, int h, int nw, int nh) {
+        int[] dst = new int[nw * nh];
+        for (int y = 0; y < nh; y++) {
+            int y0 = Math.min(2 * y, h - 1);
+            int y1 = Math.min(2 * y + 1, h - 1);
+            for (int x = 0; x < nw; x++) {
+                int x0 = Math.min(2 * x, w - 1);
+                int x1 = Math.min(2 * x + 1, w - 1);
+                int p00 = src[y0 * w + x0];
+                int p01 = src[y0 * w + x1];
+                int p10 = src[y1 * w + x0];
+                int p11 = src[y1 * w + x1];
+                int argb = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((p00 >>> shift) & 0xFF) + ((p01 >>> shift) & 0xFF)
+                            + ((p10 >>> shift) & 0xFF) + ((p11 >>> shift) & 0xFF);
+                    argb |= ((sum + 2) >> 2) << shift;
+                }
+                dst[y * nw + x] = argb;
+            }
+        }
+        return dst;
+    }
+
+    void setParallelism(int parallelism) {
+        if (pool != null && pool.getParallelism() != parallelism) {
+            pool.shutdown();
+            pool = null;
+        }
+        if (parallelism > 1 && pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    int getImageWidth() {
+        return width;
+    }
+
+    int getImageHeight() {
+        return height;
+    }
+
+    /**
+     * Рисует область region буфера out (ширина строки outWidth). Один пиксель буфера
+     * соответствует pixelSize экранным пикселям — так же считается уменьшенное превью.
+     * Точки вне изображения остаются прозрачными.
+     */
+    void render(FFDLattice lattice, View view, int[] out, int outWidth, Rectangle region, int pixelSize,
+                FFDSampler.Filter filter) {
+        if (lattice.getImageWidth() != width || lattice.getImageHeight() != height) {
+            throw new IllegalArgumentException("Решётка построена для изображения другого размера");
+        }
+        if (region.isEmpty()) {
+            return;
+        }
+
+        // Уровень пирамиды: сколько пикселей изображения приходится на пиксель буфера
+        double imagePerPixel = pixelSize / view.zoom;
+        int level = 0;
+        while (level + 1 < levels.size() && (2 << level) <= imagePerPixel) {
+            level++;
+        }
+
+        int cols = lattice.getCols();
+        double[] dispX = new double[(cols + 2) * (lattice.getRows() + 2)];
+        double[] dispY = new double[dispX.length];
+        lattice.paddedDisplacements(dispX, dispY);
+
+        // Таблицы по столбцам области: координата изображения, ячейка решётки и веса
+        Columns columns = new Columns(region.width);
+        for (int i = 0; i < region.width; i++) {
+            double ix = view.toImageX((region.x + i + 0.5) * pixelSize) - 0.5;
+            columns.imageX[i] = ix;
+            columns.inside[i] = ix >= -0.5 && ix < width - 0.5;
+            columns.cell[i] = FFDWarpEngine.basis(Math.max(0, Math.min(width - 1, ix)),
+                    cols, lattice.getSpacingX(), columns.weight, 4 * i);
+        }
+
+        Job job = new Job(lattice, view, out, outWidth, region, pixelSize, level, filter, dispX, dispY, columns);
+        if (pool == null) {
+            job.renderRows(region.y, region.y + region.height);
+        } else {
+            pool.invoke(new BandTask(job, region.y, region.y + region.height));
+        }
+    }
+
+    private static final class Columns {
+        final double[] imageX;
+        final boolean[] inside;
+        final int[] cell;
+        final double[] weight;
+
+        Columns(int count) {
+            imageX = new double[count];
+            inside = new boolean[count];
+            cell = new int[count];
+            weight = new double[4 * count];
+        }
+    }
+
+    /** Параметры одного прохода отрисовки, общие для всех полос строк. */
+    private final class Job {
+        final FFDLattice lattice;
+        final View view;
+        final int[] out;
+        final int outWidth;
+        final Rectangle region;
+        final int pixelSize;
+        final int[] pixels;
+        final int levelWidth;
+        final int levelHeight;
+        final double levelScale;
+        final FFDSampler.Filter filter;
+        final double[] dispX;
+        final double[] dispY;
+        final Columns columns;
+
+        Job(FFDLattice lattice, View view, int[] out, int outWidth, Rectangle region, int pixelSize,
+            int level, FFDSampler.Filter filter, double[] dispX, double[] dispY, Columns columns) {
+            this.lattice = lattice;
+            this.view = view;
+            this.out = out;
+            this.outWidth = outWidth;
+            this.region = region;
+            this.pixelSize = pixelSize;
+            this.pixels = levels.get(level);
+            this.levelWidth = levelSizes.get(level)[0];
+            this.levelHeight = levelSizes.get(level)[1];
+            this.levelScale = 1.0 / (1 << level);
+            this.filter = filter;
+            this.dispX = dispX;
+            this.dispY = dispY;
+            this.columns = columns;
+        }
+
+        void renderRows(int fromY, int toY) {
+            int paddedCols = lattice.getCols() + 2;
+            double[] rowDx = new double[paddedCols];
+            double[] rowDy = new double[paddedCols];
+            double[] wy = new double[4];
+            double spacingY = lattice.getSpacingY();
+
+            for (int y = fromY; y < toY; y++) {
+                int o = y * outWidth + region.x;
+                double iy = view.toImageY((y + 0.5) * pixelSize) - 0.5;
+                if (iy < -0.5 || iy >= height - 0.5) {
+                    Arrays.fill(out, o, o + region.width, 0);
+                    continue;
+                }
+
+                // Сворачиваем четыре строки решётки по v в одну строку смещений
+                int cell = FFDWarpEngine.basis(Math.max(0, Math.min(height - 1, iy)),
+                        lattice.getRows(), spacingY, wy, 0);
+                FFDWarpEngine.foldRow(dispX, dispY, paddedCols, cell, wy, 0, 0, paddedCols - 1, rowDx, rowDy);
+
+                double[] weight = columns.weight;
+                for (int i = 0; i < region.width; i++, o++) {
+                    if (!columns.inside[i]) {
+                        out[o] = 0;
+                        continue;
+                    }
+                    int c = columns.cell[i];
+                    int w = 4 * i;
+                    double sx = columns.imageX[i] + weight[w] * rowDx[c] + weight[w + 1] * rowDx[c + 1]
+                            + weight[w + 2] * rowDx[c + 2] + weight[w + 3] * rowDx[c + 3];
+                    double sy = iy + weight[w] * rowDy[c] + weight[w + 1] * rowDy[c + 1]
+                            + weight[w + 2] * rowDy[c + 2] + weight[w + 3] * rowDy[c + 3];
+
+                    if (sx >= -0.5 && sx < width - 0.5 && sy >= -0.5 && sy < height - 0.5) {
+                        if (filter == FFDSampler.Filter.NEAREST) {
+                            // Ближайший пиксель нужного уровня пирамиды
+                            int lx = Math.min(levelWidth - 1, (int) ((sx + 0.5) * levelScale));
+                            int ly = Math.min(levelHeight - 1, (int) ((sy + 0.5) * levelScale));
+                            out[o] = pixels[ly * levelWidth + lx];
+                        } else {
+                            out[o] = FFDSampler.sampleInside(pixels, levelWidth, levelHeight, filter,
+                                    (sx + 0.5) * levelScale - 0.5, (sy + 0.5) * levelScale - 0.5);
+                        }
+                    } else {
+                        out[o] = 0; // Прозрачный за границами
+                    }
+                }
+            }
+        }
+    }
+
+    /** Делит строки области на полосы по BAND_HEIGHT и рисует их параллельно. */
+    @SuppressWarnings("serial")
+    private static final class BandTask extends RecursiveAction {
+        private final Job job;
+        private final int fromY;
+        private final int toY;
+
+        BandTask(Job job, int fromY, int toY) {
+            this.job = job;
+            this.fromY = fromY;
+            this.toY = toY;
+        }
+
+        @Override
+        protected void compute() {
+            if (toY - fromY > BAND_HEIGHT) {
+                int mid = (fromY + toY) >>> 1;
+                invokeAll(new BandTask(job, fromY, mid), new BandTask(job, mid, toY));
+                return;
+            }
+            job.renderRows(fromY, toY);
+        }
+    }
+}
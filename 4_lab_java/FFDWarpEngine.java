@@ -0,0 +1,365 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Движок FFD, работающий напрямую с массивами пикселей (DataBufferInt).
+ * Деформация задаётся решёткой FFDLattice на равномерных кубических B-сплайнах:
+ * пиксель (x, y) берётся из исходника в точке (x, y) + сумма B(u) * B(v) * смещение узла.
+ * Веса B-сплайна по столбцам и строкам считаются один раз на размер изображения и решётки,
+ * во внутреннем цикле по пикселям ничего не выделяется.
+ * В параллельном режиме изображение режется на тайлы, которые обрабатываются в ForkJoinPool.
+ * Координаты выборки считаются сразу для отрезка строки, затем отрезок передаётся в FFDSampler.
+ */
+class FFDWarpEngine {
+    private final int width;
+    private final int height;
+    private final int[] src;
+    private int[] dst;
+
+    private FFDLattice lattice;
+
+    // Для каждого столбца/строки: номер ячейки решётки и четыре веса B-сплайна
+    private final int[] cellX;
+    private final int[] cellY;
+    private final double[] weightX;
+    private final double[] weightY;
+
+    // Смещения узлов с нулевой рамкой шириной в один узел, чтобы не проверять границы решётки
+    private int paddedCols;
+    private double[] dispX;
+    private double[] dispY;
+
+    // Параллельный режим: pool == null означает однопоточную обработку
+    private ForkJoinPool pool;
+    private int tileWidth = 256;
+    private int tileHeight = 64;
+
+    private FFDSampler.Filter filter = FFDSampler.Filter.NEAREST;
+
+    FFDWarpEngine(BufferedImage source, BufferedImage target, FFDLattice lattice) {
+        // getRGB возвращает те же значения, что и попиксельный getRGB, независимо от типа исходника
+        this(source.getWidth(), source.getHeight(),
+                source.getRGB(0, 0, source.getWidth(), source.getHeight(), null, 0, source.getWidth()), lattice);
+        setTarget(target);
+    }
+
+    /** Движок без изображений: годится только для bake, размер берётся из решётки. */
+    FFDWarpEngine(FFDLattice lattice) {
+        this(lattice.getImageWidth(), lattice.getImageHeight(), null, lattice);
+    }
+
+    private FFDWarpEngine(int width, int height, int[] src, FFDLattice lattice) {
+        this.width = width;
+        this.height = height;
+        this.src = src;
+
+        cellX = new int[width];
+        cellY = new int[height];
+        weightX = new double[4 * width];
+        weightY = new double[4 * height];
+
+        setLattice(lattice);
+    }
+
+    /** Переключает вывод на другое изображение того же размера (для двойной буферизации). */
+    void setTarget(BufferedImage target) {
+        if (target.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Целевое изображение должно быть TYPE_INT_ARGB");
+        }
+        if (target.getWidth() != width || target.getHeight() != height) {
+            throw new IllegalArgumentException("Размеры исходного и целевого изображений различаются");
+        }
+        dst = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Подключает решётку и пересчитывает таблицы весов под её размер. */
+    void setLattice(FFDLattice lattice) {
+        if (lattice.getImageWidth() != width || lattice.getImageHeight() != height) {
+            throw new IllegalArgumentException("Решётка построена для изображения другого размера");
+        }
+        this.lattice = lattice;
+        fillWeights(width, lattice.getCols(), lattice.getSpacingX(), cellX, weightX);
+        fillWeights(height, lattice.getRows(), lattice.getSpacingY(), cellY, weightY);
+
+        paddedCols = lattice.getCols() + 2;
+        dispX = new double[paddedCols * (lattice.getRows() + 2)];
+        dispY = new double[dispX.length];
+    }
+
+    FFDLattice getLattice() {
+        return lattice;
+    }
+
+    /**
+     * Включает параллельную обработку тайлами.
+     * parallelism <= 1 возвращает однопоточный режим.
+     */
+    void setParallelism(int parallelism, int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Размер тайла должен быть положительным");
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+
+        if (pool != null && pool.getParallelism() != parallelism) {
+            pool.shutdown();
+            pool = null;
+        }
+        if (parallelism > 1 && pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    /** Останавливает потоки пула; после этого движок считает в вызывающем потоке. */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /** Фильтр для warp; bake и mapTile всегда работают с ближайшим пикселем. */
+    void setFilter(FFDSampler.Filter filter) {
+        this.filter = filter;
+    }
+
+    FFDSampler.Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Веса равномерного кубического B-сплайна для каждой координаты вдоль оси.
+     * Ячейка i покрывает [i * spacing, (i + 1) * spacing], влияют узлы i - 1 .. i + 2.
+     */
+    static void fillWeights(int size, int nodes, double spacing, int[] cells, double[] weights) {
+        for (int p = 0; p < size; p++) {
+            cells[p] = basis(p, nodes, spacing, weights, 4 * p);
+        }
+    }
+
+    /**
+     * Веса B-сплайна для координаты pos (0 <= pos <= (nodes - 1) * spacing), записываются
+     * в weights[offset .. offset + 3]. Возвращает номер ячейки.
+     */
+    static int basis(double pos, int nodes, double spacing, double[] weights, int offset) {
+        double s = pos / spacing;
+        int cell = Math.min((int) s, nodes - 2);
+        double t = s - cell;
+        double mt = 1 - t;
+        weights[offset] = mt * mt * mt / 6;
+        weights[offset + 1] = (3 * t * t * t - 6 * t * t + 4) / 6;
+        weights[offset + 2] = (-3 * t * t * t + 3 * t * t + 3 * t + 1) / 6;
+        weights[offset + 3] = t * t * t / 6;
+        return cell;
+    }
+
+    /** Полностью пересчитывает деформированное изображение. */
+    void warp() {
+        warp(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Пересчитывает только заданную область, например носитель перемещённой точки
+     * (см. FFDLattice.support). Остальные пиксели не меняются.
+     */
+    void warp(Rectangle region) {
+        process(region, dst, false);
+    }
+
+    /**
+     * Запекает текущую деформацию в таблицу подстановки: для каждого пикселя результата
+     * индекс исходного пикселя (y * width + x) либо -1, если точка за границами.
+     */
+    void bake(int[] lookup) {
+        if (lookup.length != width * height) {
+            throw new IllegalArgumentException("Размер таблицы не совпадает с размером изображения");
+        }
+        process(new Rectangle(0, 0, width, height), lookup, true);
+    }
+
+    private void process(Rectangle region, int[] out, boolean lookup) {
+        Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+
+        snapshotDisplacements();
+        if (pool == null) {
+            warpTile(r.x, r.y, r.x + r.width, r.y + r.height, new TileScratch(paddedCols, r.width), out, lookup);
+        } else {
+            int tilesX = (r.width + tileWidth - 1) / tileWidth;
+            int tilesY = (r.height + tileHeight - 1) / tileHeight;
+            pool.invoke(new TileTask(r, 0, tilesX * tilesY, tilesX, out, lookup));
+        }
+    }
+
+    /**
+     * Координаты ближайших исходных пикселей для тайла [x0, x1) x [y0, y1) без доступа к пикселям:
+     * используется при обработке изображений, не помещающихся в память. Результат пишется
+     * построчно в srcX/srcY с шагом x1 - x0; за границами изображения обе координаты равны -1.
+     */
+    void mapTile(int x0, int y0, int x1, int y1, int[] srcX, int[] srcY) {
+        snapshotDisplacements();
+        double[] rowDx = new double[paddedCols];
+        double[] rowDy = new double[paddedCols];
+        int colFrom = cellX[x0];
+        int colTo = cellX[x1 - 1] + 3;
+
+        int out = 0;
+        for (int y = y0; y < y1; y++) {
+            foldRow(y, colFrom, colTo, rowDx, rowDy);
+            for (int x = x0; x < x1; x++, out++) {
+                int c = cellX[x];
+                int w = 4 * x;
+                double sx = x + weightX[w] * rowDx[c] + weightX[w + 1] * rowDx[c + 1]
+                        + weightX[w + 2] * rowDx[c + 2] + weightX[w + 3] * rowDx[c + 3];
+                double sy = y + weightX[w] * rowDy[c] + weightX[w + 1] * rowDy[c + 1]
+                        + weightX[w + 2] * rowDy[c + 2] + weightX[w + 3] * rowDy[c + 3];
+
+                if (sx >= -0.5 && sx < width - 0.5 && sy >= -0.5 && sy < height - 0.5) {
+                    srcX[out] = (int) (sx + 0.5);
+                    srcY[out] = (int) (sy + 0.5);
+                } else {
+                    srcX[out] = -1;
+                    srcY[out] = -1;
+                }
+            }
+        }
+    }
+
+    private void snapshotDisplacements() {
+        lattice.paddedDisplacements(dispX, dispY);
+    }
+
+    /** Сворачивает четыре строки решётки по v в одну строку смещений для строки пикселей y. */
+    private void foldRow(int y, int colFrom, int colTo, double[] rowDx, double[] rowDy) {
+        foldRow(dispX, dispY, paddedCols, cellY[y], weightY, 4 * y, colFrom, colTo, rowDx, rowDy);
+    }
+
+    /**
+     * Сворачивает строки решётки cell .. cell + 3 (смещения с рамкой, paddedCols узлов в строке)
+     * с весами B-сплайна weights[w .. w + 3] в одну строку смещений rowDx/rowDy, столбцы colFrom .. colTo.
+     * Общая для warp и экранной отрисовки (FFDViewportRenderer).
+     */
+    static void foldRow(double[] dispX, double[] dispY, int paddedCols, int cell, double[] weights, int w,
+                        int colFrom, int colTo, double[] rowDx, double[] rowDy) {
+        int base = cell * paddedCols;
+        double v0 = weights[w];
+        double v1 = weights[w + 1];
+        double v2 = weights[w + 2];
+        double v3 = weights[w + 3];
+        for (int c = colFrom; c <= colTo; c++) {
+            int k = base + c;
+            rowDx[c] = v0 * dispX[k] + v1 * dispX[k + paddedCols]
+                    + v2 * dispX[k + 2 * paddedCols] + v3 * dispX[k + 3 * paddedCols];
+            rowDy[c] = v0 * dispY[k] + v1 * dispY[k + paddedCols]
+                    + v2 * dispY[k + 2 * paddedCols] + v3 * dispY[k + 3 * paddedCols];
+        }
+    }
+
+    /** Рабочие массивы одного тайла: свёрнутая строка смещений и координаты выборки отрезка. */
+    private static final class TileScratch {
+        final double[] rowDx;
+        final double[] rowDy;
+        final double[] runX;
+        final double[] runY;
+
+        TileScratch(int paddedCols, int runLength) {
+            rowDx = new double[paddedCols];
+            rowDy = new double[paddedCols];
+            runX = new double[runLength];
+            runY = new double[runLength];
+        }
+    }
+
+    /**
+     * Обрабатывает тайл: в out пишется либо цвет исходника (через выбранный фильтр),
+     * либо (lookup == true) индекс ближайшего пикселя для таблицы подстановки.
+     */
+    private void warpTile(int x0, int y0, int x1, int y1, TileScratch scratch, int[] out, boolean lookup) {
+        // Узлы, которые могут понадобиться пикселям тайла (в индексах с рамкой)
+        int colFrom = cellX[x0];
+        int colTo = cellX[x1 - 1] + 3;
+        double[] rowDx = scratch.rowDx;
+        double[] rowDy = scratch.rowDy;
+        double[] runX = scratch.runX;
+        double[] runY = scratch.runY;
+        int count = x1 - x0;
+
+        for (int y = y0; y < y1; y++) {
+            foldRow(y, colFrom, colTo, rowDx, rowDy);
+
+            // Координаты выборки для всего отрезка строки
+            for (int i = 0; i < count; i++) {
+                int x = x0 + i;
+                int c = cellX[x];
+                int w = 4 * x;
+                runX[i] = x + weightX[w] * rowDx[c] + weightX[w + 1] * rowDx[c + 1]
+                        + weightX[w + 2] * rowDx[c + 2] + weightX[w + 3] * rowDx[c + 3];
+                runY[i] = y + weightX[w] * rowDy[c] + weightX[w + 1] * rowDy[c + 1]
+                        + weightX[w + 2] * rowDy[c + 2] + weightX[w + 3] * rowDy[c + 3];
+            }
+
+            int row = y * width + x0;
+            if (!lookup) {
+                FFDSampler.sampleRun(src, width, height, filter, runX, runY, out, row, count);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                double sx = runX[i];
+                double sy = runY[i];
+                // Проверяем границы и берём ближайший пиксель
+                if (sx >= -0.5 && sx < width - 0.5 && sy >= -0.5 && sy < height - 0.5) {
+                    out[row + i] = (int) (sy + 0.5) * width + (int) (sx + 0.5);
+                } else {
+                    out[row + i] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Делит диапазон тайлов области пополам, пока в задаче не останется один тайл.
+     * Тайлы не пересекаются, поэтому запись в out не требует синхронизации.
+     */
+    @SuppressWarnings("serial")
+    private class TileTask extends RecursiveAction {
+        private final Rectangle region;
+        private final int from;
+        private final int to;
+        private final int tilesX;
+        private final int[] out;
+        private final boolean lookup;
+
+        TileTask(Rectangle region, int from, int to, int tilesX, int[] out, boolean lookup) {
+            this.region = region;
+            this.from = from;
+            this.to = to;
+            this.tilesX = tilesX;
+            this.out = out;
+            this.lookup = lookup;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(region, from, mid, tilesX, out, lookup),
+                        new TileTask(region, mid, to, tilesX, out, lookup));
+                return;
+            }
+            int x0 = region.x + (from % tilesX) * tileWidth;
+            int y0 = region.y + (from / tilesX) * tileHeight;
+            int x1 = Math.min(x0 + tileWidth, region.x + region.width);
+            int y1 = Math.min(y0 + tileHeight, region.y + region.height);
+            warpTile(x0, y0, x1, y1, new TileScratch(paddedCols, x1 - x0), out, lookup);
+        }
+    }
+}
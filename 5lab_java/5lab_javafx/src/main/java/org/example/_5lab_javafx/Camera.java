@@ -0,0 +1,81 @@
+package org.example._5lab_javafx;
+
+class Camera {
+    private double angleX = 0;
+    private double angleY = 0;
+    private double angleZ = 0;
+    private double zoom = 1.0;
+
+    public void rotate(double deltaX, double deltaY, double deltaZ) {
+        angleX += deltaX;
+        angleY += deltaY;
+        angleZ += deltaZ;
+    }
+
+    public void zoom(double scale) {
+        zoom *= scale;
+    }
+
+    /**
+     * Матрица 3x4 (построчно, последний столбец — перенос) для вершин:
+     * zoom * Rz * Ry * Rx. Строится один раз на кадр, дальше вершина преобразуется
+     * одним умножением без синусов и косинусов.
+     */
+    public double[] viewMatrix() {
+        double[] r = multiply(rotationZ(angleZ), multiply(rotationY(angleY), rotationX(angleX)));
+        return new double[]{
+                r[0] * zoom, r[1] * zoom, r[2] * zoom, 0,
+                r[3] * zoom, r[4] * zoom, r[5] * zoom, 0,
+                r[6] * zoom, r[7] * zoom, r[8] * zoom, 0
+        };
+    }
+
+    /**
+     * Матрица 3x3 для нормалей. Нормали преобразуются обратной транспонированной матрицей,
+     * для ортогональной матрицы вращения это то же самое вращение Rz * Ry * Rx, что и у
+     * вершин (масштаб не нужен).
+     */
+    public double[] normalMatrix() {
+        return multiply(rotationZ(angleZ), multiply(rotationY(angleY), rotationX(angleX)));
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+        double[] result = new double[9];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                result[3 * row + col] = a[3 * row] * b[col] + a[3 * row + 1] * b[3 + col] + a[3 * row + 2] * b[6 + col];
+            }
+        }
+        return result;
+    }
+
+    private static double[] rotationX(double angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        return new double[]{
+                1, 0, 0,
+                0, cos, -sin,
+                0, sin, cos
+        };
+    }
+
+    private static double[] rotationY(double angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        return new double[]{
+                cos, 0, sin,
+                0, 1, 0,
+                -sin, 0, cos
+        };
+    }
+
+    private static double[] rotationZ(double angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        return new double[]{
+                cos, -sin, 0,
+                sin, cos, 0,
+                0, 0, 1
+        };
+    }
+}
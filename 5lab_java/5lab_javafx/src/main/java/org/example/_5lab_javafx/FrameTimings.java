@@ -0,0 +1,47 @@
+package org.example._5lab_javafx;
+
+import java.util.Locale;
+
+/**
+ * Время этапов кадра: преобразование (вершины, треугольники, отсечение, раскладка по
+ * тайлам), растеризация и вывод на экран, а также частота кадров. Значения сглажены
+ * экспоненциальным средним, чтобы цифры на экране не прыгали.
+ */
+class FrameTimings {
+    private static final double SMOOTHING = 0.1;
+
+    private long frames;
+    private long lastFrameEnd;
+    private double transformNanos;
+    private double rasterNanos;
+    private double presentNanos;
+    private double intervalNanos;
+
+    synchronized void recordFrame(long transform, long raster, long frameEnd) {
+        transformNanos = smooth(transformNanos, transform);
+        rasterNanos = smooth(rasterNanos, raster);
+        if (frames > 0) {
+            intervalNanos = smooth(intervalNanos, frameEnd - lastFrameEnd);
+        }
+        lastFrameEnd = frameEnd;
+        frames++;
+    }
+
+    synchronized void recordPresent(long present) {
+        presentNanos = smooth(presentNanos, present);
+    }
+
+    private double smooth(double average, long value) {
+        return average == 0 ? value : average + SMOOTHING * (value - average);
+    }
+
+    synchronized long getFrames() {
+        return frames;
+    }
+
+    synchronized String summary() {
+        return String.format(Locale.ROOT, "%.0f к/с, кадр %.1f мс: преобразование %.1f, растеризация %.1f, вывод %.1f",
+                intervalNanos > 0 ? 1e9 / intervalNanos : 0, (transformNanos + rasterNanos) / 1e6,
+                transformNanos / 1e6, rasterNanos / 1e6, presentNanos / 1e6);
+    }
+}
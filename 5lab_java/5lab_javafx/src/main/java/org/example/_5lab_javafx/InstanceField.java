@@ -0,0 +1,232 @@
+package org.example._5lab_javafx;
+
+/**
+ * Множество копий одной сетки: у каждой копии свой центр, равномерный масштаб и цвет,
+ * а геометрия общая. Копия i — это вершины base, умноженные на scales[i] и сдвинутые
+ * на centers[3i..3i+2]; цвет треугольника — цвет копии, затенённый цветом треугольника
+ * base (у белой грани цвет копии, у серой — темнее).
+ *
+ * Над копиями один раз строится иерархия ограничивающих объёмов (BVH) в плоских
+ * массивах, по ней за кадр отбрасываются целые поддеревья вне пирамиды видимости.
+ * После построения копии переставлены в порядке листьев, так что номера копий
+ * соседних листьев близки и их данные лежат в памяти рядом.
+ */
+final class InstanceField {
+    // Сколько копий в листе иерархии
+    private static final int LEAF_SIZE = 8;
+
+    final Mesh base;
+    // Радиус сферы вокруг начала координат, в которую помещается base
+    final float baseRadius;
+    final float[] centers;
+    final float[] scales;
+    final int[] colors;
+
+    // Узлы в прямом порядке обхода: левый потомок узла n — это n + 1, правый — nodeRight[n].
+    // У листа nodeCount > 0 и его копии — nodeFirst .. nodeFirst + nodeCount - 1
+    private final float[] nodeBounds; // minX, minY, minZ, maxX, maxY, maxZ
+    private final int[] nodeRight;
+    private final int[] nodeFirst;
+    private final int[] nodeCount;
+    // Перестановка копий на время построения: order[k] — исходный номер k-й копии
+    private int[] order;
+    private int nodes;
+
+    InstanceField(Mesh base, float[] centers, float[] scales, int[] colors) {
+        int count = scales.length;
+        if (centers.length != 3 * count || colors.length != count) {
+            throw new IllegalArgumentException("Для каждой копии нужны центр, масштаб и цвет");
+        }
+        this.base = base;
+        this.centers = new float[3 * count];
+        this.scales = new float[count];
+        this.colors = new int[count];
+
+        float radius = 0;
+        for (int i = 0; i < base.positions.length; i += 3) {
+            float x = base.positions[i];
+            float y = base.positions[i + 1];
+            float z = base.positions[i + 2];
+            radius = Math.max(radius, (float) Math.sqrt(x * x + y * y + z * z));
+        }
+        this.baseRadius = radius;
+
+        // В листе не меньше LEAF_SIZE / 2 копий, значит листьев не больше count / (LEAF_SIZE / 2)
+        int maxNodes = Math.max(1, 2 * count / (LEAF_SIZE / 2));
+        nodeBounds = new float[6 * maxNodes];
+        nodeRight = new int[maxNodes];
+        nodeFirst = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        build(centers, scales, 0, count);
+
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+            System.arraycopy(centers, 3 * i, this.centers, 3 * k, 3);
+            this.scales[k] = scales[i];
+            this.colors[k] = colors[i];
+        }
+        order = null;
+    }
+
+    int size() {
+        return scales.length;
+    }
+
+    /** Строит узел над order[from, to) по исходным центрам и масштабам и возвращает его номер. */
+    private int build(float[] centers, float[] scales, int from, int to) {
+        int node = nodes++;
+        float[] b = nodeBounds;
+        int o = 6 * node;
+        b[o] = b[o + 1] = b[o + 2] = Float.POSITIVE_INFINITY;
+        b[o + 3] = b[o + 4] = b[o + 5] = Float.NEGATIVE_INFINITY;
+        // Заодно границы центров: по самой длинной их стороне делим узел
+        float[] centerBounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int k = from; k < to; k++) {
+            int i = order[k];
+            float r = scales[i] * baseRadius;
+            for (int axis = 0; axis < 3; axis++) {
+                float c = centers[3 * i + axis];
+                b[o + axis] = Math.min(b[o + axis], c - r);
+                b[o + 3 + axis] = Math.max(b[o + 3 + axis], c + r);
+                centerBounds[axis] = Math.min(centerBounds[axis], c);
+                centerBounds[3 + axis] = Math.max(centerBounds[3 + axis], c);
+            }
+        }
+
+        if (to - from <= LEAF_SIZE) {
+            nodeFirst[node] = from;
+            nodeCount[node] = to - from;
+            return node;
+        }
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (centerBounds[3 + a] - centerBounds[a] > centerBounds[3 + axis] - centerBounds[axis]) {
+                axis = a;
+            }
+        }
+        int mid = (from + to) >>> 1;
+        select(centers, from, to, mid, axis);
+        build(centers, scales, from, mid);
+        nodeRight[node] = build(centers, scales, mid, to);
+        return node;
+    }
+
+    /** Переставляет order[from, to) так, что на месте k стоит k-я по координате axis копия (quickselect). */
+    private void select(float[] centers, int from, int to, int k, int axis) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            float pivot = centers[3 * order[(lo + hi) >>> 1] + axis];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (centers[3 * order[i] + axis] < pivot) {
+                    i++;
+                }
+                while (centers[3 * order[j] + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Записывает в visible номера копий, чья ограничивающая сфера хотя бы частично
+     * внутри всех плоскостей (по четыре числа a, b, c, d на плоскость, внутри —
+     * a x + b y + c z + d >= 0, нормаль единичная). Поддерево, целиком лежащее внутри
+     * какой-то плоскости, дальше с ней не сравнивается.
+     *
+     * @return число видимых копий
+     */
+    int cull(double[] planes, int[] visible) {
+        int planeCount = planes.length / 4;
+        int allPlanes = (1 << planeCount) - 1;
+        int found = 0;
+        if (scales.length == 0) {
+            return 0;
+        }
+        // Иерархия сбалансирована (деление по медиане), её глубина не больше 32
+        int[] stack = new int[64];
+        int[] stackMask = new int[64];
+        int top = 0;
+        stack[top] = 0;
+        stackMask[top++] = allPlanes;
+
+        while (top > 0) {
+            int node = stack[--top];
+            int mask = stackMask[top];
+            int o = 6 * node;
+            boolean outside = false;
+            for (int p = 0; p < planeCount && !outside; p++) {
+                if ((mask & (1 << p)) == 0) {
+                    continue;
+                }
+                double a = planes[4 * p];
+                double b = planes[4 * p + 1];
+                double c = planes[4 * p + 2];
+                double d = planes[4 * p + 3];
+                // Вершины параллелепипеда, дальше всех уходящие внутрь (far) и наружу (near)
+                double far = a * nodeBounds[o + (a >= 0 ? 3 : 0)] + b * nodeBounds[o + (b >= 0 ? 4 : 1)]
+                        + c * nodeBounds[o + (c >= 0 ? 5 : 2)] + d;
+                double near = a * nodeBounds[o + (a >= 0 ? 0 : 3)] + b * nodeBounds[o + (b >= 0 ? 1 : 4)]
+                        + c * nodeBounds[o + (c >= 0 ? 2 : 5)] + d;
+                if (far < 0) {
+                    outside = true;
+                } else if (near >= 0) {
+                    mask &= ~(1 << p);
+                }
+            }
+            if (outside) {
+                continue;
+            }
+
+            if (nodeCount[node] > 0) {
+                int end = nodeFirst[node] + nodeCount[node];
+                for (int i = nodeFirst[node]; i < end; i++) {
+                    if (mask == 0 || sphereInside(planes, planeCount, mask, i)) {
+                        visible[found++] = i;
+                    }
+                }
+            } else {
+                stack[top] = nodeRight[node];
+                stackMask[top++] = mask;
+                stack[top] = node + 1;
+                stackMask[top++] = mask;
+            }
+        }
+        return found;
+    }
+
+    private boolean sphereInside(double[] planes, int planeCount, int mask, int i) {
+        double x = centers[3 * i];
+        double y = centers[3 * i + 1];
+        double z = centers[3 * i + 2];
+        double r = scales[i] * baseRadius;
+        for (int p = 0; p < planeCount; p++) {
+            if ((mask & (1 << p)) != 0
+                    && planes[4 * p] * x + planes[4 * p + 1] * y + planes[4 * p + 2] * z + planes[4 * p + 3] < -r) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,75 @@
+package org.example._5lab_javafx;
+
+import java.util.List;
+
+/**
+ * Индексированная сетка в плоских массивах: координаты и нормали вершин по три числа
+ * подряд, по три индекса вершин и один цвет RGB на треугольник. Вершины грани
+ * перечисляются против часовой стрелки, если смотреть на неё снаружи.
+ */
+class Mesh {
+    final float[] positions;
+    final float[] normals;
+    final int[] indices;
+    final int[] colors;
+
+    public Mesh(float[] positions, float[] normals, int[] indices, int[] colors) {
+        if (positions.length % 3 != 0 || normals.length != positions.length) {
+            throw new IllegalArgumentException("Координаты и нормали должны быть заданы для каждой вершины");
+        }
+        if (indices.length % 3 != 0 || colors.length != indices.length / 3) {
+            throw new IllegalArgumentException("На каждый треугольник нужны три индекса и один цвет");
+        }
+        int vertexCount = positions.length / 3;
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Индекс вершины вне сетки: " + index);
+            }
+        }
+        this.positions = positions;
+        this.normals = normals;
+        this.indices = indices;
+        this.colors = colors;
+    }
+
+    public int getVertexCount() {
+        return positions.length / 3;
+    }
+
+    public int getTriangleCount() {
+        return colors.length;
+    }
+
+    /** Сколько памяти занимают массивы сетки. */
+    public long byteSize() {
+        return 4L * (positions.length + normals.length + indices.length + colors.length);
+    }
+
+    /** Объединяет сетки в одну, сдвигая индексы каждой на число вершин предыдущих. */
+    public static Mesh merge(List<Mesh> meshes) {
+        int vertexCount = 0;
+        int triangleCount = 0;
+        for (Mesh mesh : meshes) {
+            vertexCount += mesh.getVertexCount();
+            triangleCount += mesh.getTriangleCount();
+        }
+        float[] positions = new float[3 * vertexCount];
+        float[] normals = new float[3 * vertexCount];
+        int[] indices = new int[3 * triangleCount];
+        int[] colors = new int[triangleCount];
+
+        int vertexOffset = 0;
+        int triangleOffset = 0;
+        for (Mesh mesh : meshes) {
+            System.arraycopy(mesh.positions, 0, positions, 3 * vertexOffset, mesh.positions.length);
+            System.arraycopy(mesh.normals, 0, normals, 3 * vertexOffset, mesh.normals.length);
+            System.arraycopy(mesh.colors, 0, colors, triangleOffset, mesh.colors.length);
+            for (int i = 0; i < mesh.indices.length; i++) {
+                indices[3 * triangleOffset + i] = mesh.indices[i] + vertexOffset;
+            }
+            vertexOffset += mesh.getVertexCount();
+            triangleOffset += mesh.getTriangleCount();
+        }
+        return new Mesh(positions, normals, indices, colors);
+    }
+}
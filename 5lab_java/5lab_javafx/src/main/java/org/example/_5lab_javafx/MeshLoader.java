@@ -0,0 +1,668 @@
+package org.example._5lab_javafx;
+
+import java.awt.Color;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Загрузка сеток из OBJ (текстовый) и PLY (двоичный, little- или big-endian).
+ * Файл отображается в память окнами и разбирается за один проход прямо в массивы
+ * примитивов Mesh, без объектов на вершину или грань. Многоугольники разбиваются
+ * веером на треугольники, нормали вершин считаются по граням.
+ *
+ * В OBJ и PLY ось z направлена к зрителю, у нас — от него, поэтому z меняет знак:
+ * модель поворачивается к камере лицевой стороной, а обход граней остаётся таким,
+ * как ждёт отбрасывание изнанки (против часовой стрелки, если смотреть снаружи).
+ */
+final class MeshLoader {
+    // Окно отображения файла; файлы больше окна читаются несколькими отображениями подряд
+    private static final long WINDOW = 1L << 30;
+    private static final int DEFAULT_COLOR = Color.LIGHT_GRAY.getRGB();
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private MeshLoader() {
+    }
+
+    /** Загружает сетку, формат определяется по расширению файла. */
+    static Mesh load(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        try (MappedInput in = new MappedInput(path)) {
+            if (name.endsWith(".obj")) {
+                return loadObj(in);
+            }
+            if (name.endsWith(".ply")) {
+                return loadPly(in);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Некорректная сетка в файле " + path + ": " + e.getMessage(), e);
+        }
+        throw new IOException("Неизвестный формат сетки (нужен .obj или .ply): " + path);
+    }
+
+    /**
+     * Переносит и масштабирует сетку на месте так, чтобы её ограничивающий параллелепипед
+     * был с центром в начале координат, а половина его диагонали равнялась radius.
+     */
+    static void fit(Mesh mesh, double radius) {
+        float[] p = mesh.positions;
+        if (p.length == 0) {
+            return;
+        }
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i < p.length; i++) {
+            min[i % 3] = Math.min(min[i % 3], p[i]);
+            max[i % 3] = Math.max(max[i % 3], p[i]);
+        }
+        double dx = max[0] - min[0];
+        double dy = max[1] - min[1];
+        double dz = max[2] - min[2];
+        double extent = Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
+        double scale = extent > 0 ? radius / extent : 1;
+        for (int i = 0; i < p.length; i++) {
+            p[i] = (float) ((p[i] - (min[i % 3] + max[i % 3]) / 2) * scale);
+        }
+    }
+
+    // ---------------------------------------------------------------- OBJ
+
+    private static Mesh loadObj(MappedInput in) throws IOException {
+        FloatArray positions = new FloatArray();
+        IntArray indices = new IntArray();
+        int[] polygon = new int[16];
+        long line = 1;
+
+        while (in.peek() >= 0) {
+            int c = in.read();
+            if (c == 'v' && isBlank(in.peek())) {
+                positions.add((float) readNumber(in, line));
+                positions.add((float) readNumber(in, line));
+                positions.add((float) -readNumber(in, line));
+            } else if (c == 'f' && isBlank(in.peek())) {
+                int vertexCount = positions.size / 3;
+                int corners = 0;
+                while (true) {
+                    skipBlanks(in);
+                    int next = in.peek();
+                    if (next < 0 || next == '\n' || next == '\r' || next == '#') {
+                        break;
+                    }
+                    // v, v/vt, v/vt/vn или v//vn — нужен только номер вершины
+                    long index = readInteger(in, line);
+                    while (!isBlank(in.peek()) && !isLineEnd(in.peek())) {
+                        in.read();
+                    }
+                    if (index == 0) {
+                        throw new IOException("Строка " + line + ": вершины в OBJ нумеруются с единицы");
+                    }
+                    // Отрицательный номер отсчитывается от последней прочитанной вершины
+                    long resolved = index > 0 ? index - 1 : vertexCount + index;
+                    if (resolved < 0 || resolved >= vertexCount) {
+                        throw new IOException("Строка " + line + ": нет вершины с номером " + index);
+                    }
+                    if (corners == polygon.length) {
+                        polygon = Arrays.copyOf(polygon, 2 * polygon.length);
+                    }
+                    polygon[corners++] = (int) resolved;
+                }
+                for (int k = 1; k + 1 < corners; k++) {
+                    indices.add(polygon[0]);
+                    indices.add(polygon[k]);
+                    indices.add(polygon[k + 1]);
+                }
+            }
+            // Остаток строки (и строки других видов: vt, vn, g, usemtl, комментарии) пропускаем
+            if (c != '\n') {
+                skipLine(in);
+            }
+            line++;
+        }
+        return buildMesh(positions.toArray(), indices.toArray(), null);
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isLineEnd(int c) {
+        return c < 0 || c == '\n' || c == '\r';
+    }
+
+    private static void skipBlanks(MappedInput in) throws IOException {
+        while (isBlank(in.peek())) {
+            in.read();
+        }
+    }
+
+    private static void skipLine(MappedInput in) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c >= 0 && c != '\n');
+    }
+
+    private static long readInteger(MappedInput in, long line) throws IOException {
+        skipBlanks(in);
+        boolean negative = in.peek() == '-';
+        if (negative || in.peek() == '+') {
+            in.read();
+        }
+        if (!isDigit(in.peek())) {
+            throw new IOException("Строка " + line + ": ожидалось целое число");
+        }
+        long value = 0;
+        while (isDigit(in.peek())) {
+            value = 10 * value + (in.read() - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /** Разбирает десятичное число с необязательными дробной частью и порядком, без создания строк. */
+    private static double readNumber(MappedInput in, long line) throws IOException {
+        skipBlanks(in);
+        boolean negative = in.peek() == '-';
+        if (negative || in.peek() == '+') {
+            in.read();
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        while (isDigit(in.peek())) {
+            int d = in.read() - '0';
+            if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                mantissa = 10 * mantissa + d;
+            } else {
+                exponent++; // лишние цифры за пределами точности long
+            }
+            digits++;
+        }
+        if (in.peek() == '.') {
+            in.read();
+            while (isDigit(in.peek())) {
+                int d = in.read() - '0';
+                if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                    mantissa = 10 * mantissa + d;
+                    exponent--;
+                }
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            throw new IOException("Строка " + line + ": ожидалось число");
+        }
+        int e = in.peek();
+        if (e == 'e' || e == 'E') {
+            in.read();
+            exponent += (int) readInteger(in, line);
+        }
+        double value = mantissa;
+        if (exponent > 0) {
+            value *= exponent < POW10.length ? POW10[exponent] : Math.pow(10, exponent);
+        } else if (exponent < 0) {
+            value /= -exponent < POW10.length ? POW10[-exponent] : Math.pow(10, -exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // ---------------------------------------------------------------- PLY
+
+    private static final int ROLE_OTHER = 0;
+    private static final int ROLE_X = 1;
+    private static final int ROLE_Y = 2;
+    private static final int ROLE_Z = 3;
+    private static final int ROLE_RED = 4;
+    private static final int ROLE_GREEN = 5;
+    private static final int ROLE_BLUE = 6;
+    private static final int ROLE_INDICES = 7;
+
+    private enum PlyType {
+        CHAR(1), UCHAR(1), SHORT(2), USHORT(2), INT(4), UINT(4), FLOAT(4), DOUBLE(8);
+
+        final int size;
+
+        PlyType(int size) {
+            this.size = size;
+        }
+
+        static PlyType parse(String name) throws IOException {
+            switch (name) {
+                case "char": case "int8": return CHAR;
+                case "uchar": case "uint8": return UCHAR;
+                case "short": case "int16": return SHORT;
+                case "ushort": case "uint16": return USHORT;
+                case "int": case "int32": return INT;
+                case "uint": case "uint32": return UINT;
+                case "float": case "float32": return FLOAT;
+                case "double": case "float64": return DOUBLE;
+                default: throw new IOException("Неизвестный тип свойства PLY: " + name);
+            }
+        }
+
+        double read(ByteBuffer buffer) {
+            switch (this) {
+                case CHAR: return buffer.get();
+                case UCHAR: return buffer.get() & 0xFF;
+                case SHORT: return buffer.getShort();
+                case USHORT: return buffer.getShort() & 0xFFFF;
+                case INT: return buffer.getInt();
+                case UINT: return buffer.getInt() & 0xFFFFFFFFL;
+                case FLOAT: return buffer.getFloat();
+                default: return buffer.getDouble();
+            }
+        }
+    }
+
+    private static final class PlyProperty {
+        final PlyType type;
+        final PlyType countType; // не null — свойство-список
+        final int role;
+
+        PlyProperty(PlyType type, PlyType countType, int role) {
+            this.type = type;
+            this.countType = countType;
+            this.role = role;
+        }
+    }
+
+    private static final class PlyElement {
+        final String name;
+        final long count;
+        final List<PlyProperty> properties = new ArrayList<>();
+
+        PlyElement(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    private static Mesh loadPly(MappedInput in) throws IOException {
+        if (!readHeaderLine(in).equals("ply")) {
+            throw new IOException("Файл не является PLY");
+        }
+        List<PlyElement> elements = new ArrayList<>();
+        ByteOrder order = null;
+        while (true) {
+            String[] words = readHeaderLine(in).trim().split("\\s+");
+            switch (words[0]) {
+                case "format":
+                    if (words[1].equals("binary_little_endian")) {
+                        order = ByteOrder.LITTLE_ENDIAN;
+                    } else if (words[1].equals("binary_big_endian")) {
+                        order = ByteOrder.BIG_ENDIAN;
+                    } else {
+                        throw new IOException("Поддерживается только двоичный PLY, а не " + words[1]);
+                    }
+                    break;
+                case "element":
+                    elements.add(new PlyElement(words[1], Long.parseLong(words[2])));
+                    break;
+                case "property":
+                    if (elements.isEmpty()) {
+                        throw new IOException("Свойство PLY вне элемента");
+                    }
+                    boolean list = words[1].equals("list");
+                    String name = words[words.length - 1];
+                    PlyType type = PlyType.parse(list ? words[3] : words[1]);
+                    elements.get(elements.size() - 1).properties.add(
+                            new PlyProperty(type, list ? PlyType.parse(words[2]) : null, role(name, list)));
+                    break;
+                case "end_header":
+                    if (order == null) {
+                        throw new IOException("В заголовке PLY нет строки format");
+                    }
+                    return readPlyBody(in, elements, order);
+                default:
+                    break; // comment, obj_info
+            }
+        }
+    }
+
+    private static int role(String name, boolean list) {
+        if (list) {
+            return name.equals("vertex_indices") || name.equals("vertex_index") ? ROLE_INDICES : ROLE_OTHER;
+        }
+        switch (name) {
+            case "x": return ROLE_X;
+            case "y": return ROLE_Y;
+            case "z": return ROLE_Z;
+            case "red": case "r": return ROLE_RED;
+            case "green": case "g": return ROLE_GREEN;
+            case "blue": case "b": return ROLE_BLUE;
+            default: return ROLE_OTHER;
+        }
+    }
+
+    private static String readHeaderLine(MappedInput in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Заголовок PLY оборван");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static Mesh readPlyBody(MappedInput in, List<PlyElement> elements, ByteOrder order) throws IOException {
+        in.order(order);
+        float[] positions = null;
+        int[] vertexColors = null;
+        IntArray indices = null;
+
+        for (PlyElement element : elements) {
+            if (element.name.equals("vertex")) {
+                if (3 * element.count > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Слишком много вершин: " + element.count);
+                }
+                int count = (int) element.count;
+                positions = new float[3 * count];
+                boolean hasColor = false;
+                // Размер вершины, если у неё нет списков: тогда граница окна проверяется раз на вершину
+                int stride = 0;
+                for (PlyProperty property : element.properties) {
+                    hasColor |= property.role == ROLE_RED;
+                    stride = stride < 0 || property.countType != null ? -1 : stride + property.type.size;
+                }
+                vertexColors = hasColor ? new int[count] : null;
+                for (int v = 0; v < count; v++) {
+                    int rgb = 0xFF000000;
+                    if (stride > 0) {
+                        in.require(stride);
+                    }
+                    for (PlyProperty property : element.properties) {
+                        if (property.countType != null) {
+                            skipList(in, property);
+                            continue;
+                        }
+                        if (stride < 0) {
+                            in.require(property.type.size);
+                        }
+                        double value = property.type.read(in.buffer());
+                        switch (property.role) {
+                            case ROLE_X: positions[3 * v] = (float) value; break;
+                            case ROLE_Y: positions[3 * v + 1] = (float) value; break;
+                            case ROLE_Z: positions[3 * v + 2] = (float) -value; break;
+                            case ROLE_RED: rgb |= colorChannel(property.type, value) << 16; break;
+                            case ROLE_GREEN: rgb |= colorChannel(property.type, value) << 8; break;
+                            case ROLE_BLUE: rgb |= colorChannel(property.type, value); break;
+                            default: break;
+                        }
+                    }
+                    if (vertexColors != null) {
+                        vertexColors[v] = rgb;
+                    }
+                }
+            } else if (element.name.equals("face")) {
+                indices = new IntArray((int) Math.min(3 * element.count, Integer.MAX_VALUE - 8));
+                int[] polygon = new int[16];
+                for (long f = 0; f < element.count; f++) {
+                    for (PlyProperty property : element.properties) {
+                        if (property.countType == null) {
+                            in.require(property.type.size);
+                            property.type.read(in.buffer());
+                        } else if (property.role != ROLE_INDICES) {
+                            skipList(in, property);
+                        } else {
+                            in.require(property.countType.size);
+                            int corners = (int) property.countType.read(in.buffer());
+                            if (corners > polygon.length) {
+                                polygon = new int[corners];
+                            }
+                            in.require(corners * property.type.size);
+                            for (int k = 0; k < corners; k++) {
+                                polygon[k] = (int) property.type.read(in.buffer());
+                            }
+                            for (int k = 1; k + 1 < corners; k++) {
+                                indices.add(polygon[0]);
+                                indices.add(polygon[k]);
+                                indices.add(polygon[k + 1]);
+                            }
+                        }
+                    }
+                }
+            } else {
+                // Посторонние элементы (рёбра, материалы) пропускаем целиком
+                for (long i = 0; i < element.count; i++) {
+                    for (PlyProperty property : element.properties) {
+                        if (property.countType != null) {
+                            skipList(in, property);
+                        } else {
+                            in.skip(property.type.size);
+                        }
+                    }
+                }
+            }
+        }
+        if (positions == null || indices == null) {
+            throw new IOException("В PLY нет элементов vertex и face");
+        }
+        return buildMesh(positions, indices.toArray(), vertexColors);
+    }
+
+    private static void skipList(MappedInput in, PlyProperty property) throws IOException {
+        in.require(property.countType.size);
+        long count = (long) property.countType.read(in.buffer());
+        in.skip(count * property.type.size);
+    }
+
+    private static int colorChannel(PlyType type, double value) {
+        // Цвет бывает байтом 0..255 или дробным 0..1
+        double scaled = type == PlyType.FLOAT || type == PlyType.DOUBLE ? value * 255 : value;
+        return (int) Math.max(0, Math.min(255, Math.round(scaled)));
+    }
+
+    // ---------------------------------------------------------------- сборка
+
+    /**
+     * Собирает Mesh: цвет треугольника — среднее цветов его вершин (если они есть),
+     * нормаль вершины — сумма векторных произведений прилежащих граней, то есть
+     * средняя нормаль с весом по площади.
+     */
+    private static Mesh buildMesh(float[] positions, int[] indices, int[] vertexColors) {
+        int vertexCount = positions.length / 3;
+        int triangleCount = indices.length / 3;
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Индекс вершины вне сетки: " + index);
+            }
+        }
+
+        float[] normals = new float[positions.length];
+        int[] colors = new int[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            int a = 3 * indices[3 * t];
+            int b = 3 * indices[3 * t + 1];
+            int c = 3 * indices[3 * t + 2];
+            float abx = positions[b] - positions[a];
+            float aby = positions[b + 1] - positions[a + 1];
+            float abz = positions[b + 2] - positions[a + 2];
+            float acx = positions[c] - positions[a];
+            float acy = positions[c + 1] - positions[a + 1];
+            float acz = positions[c + 2] - positions[a + 2];
+            // Векторное произведение, как в Tetrahedron.calculateFaceNormal
+            float nx = aby * acz - abz * acy;
+            float ny = abz * acx - abx * acz;
+            float nz = abx * acy - aby * acx;
+            normals[a] += nx;
+            normals[a + 1] += ny;
+            normals[a + 2] += nz;
+            normals[b] += nx;
+            normals[b + 1] += ny;
+            normals[b + 2] += nz;
+            normals[c] += nx;
+            normals[c + 1] += ny;
+            normals[c + 2] += nz;
+
+            if (vertexColors == null) {
+                colors[t] = DEFAULT_COLOR;
+            } else {
+                int ca = vertexColors[a / 3];
+                int cb = vertexColors[b / 3];
+                int cc = vertexColors[c / 3];
+                int red = (((ca >> 16) & 0xFF) + ((cb >> 16) & 0xFF) + ((cc >> 16) & 0xFF)) / 3;
+                int green = (((ca >> 8) & 0xFF) + ((cb >> 8) & 0xFF) + ((cc >> 8) & 0xFF)) / 3;
+                int blue = ((ca & 0xFF) + (cb & 0xFF) + (cc & 0xFF)) / 3;
+                colors[t] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+
+        for (int i = 0; i < normals.length; i += 3) {
+            double length = Math.sqrt(normals[i] * normals[i] + normals[i + 1] * normals[i + 1]
+                    + normals[i + 2] * normals[i + 2]);
+            if (length > 0) {
+                normals[i] /= length;
+                normals[i + 1] /= length;
+                normals[i + 2] /= length;
+            }
+        }
+        return new Mesh(positions, normals, indices, colors);
+    }
+
+    /**
+     * Последовательное чтение файла через отображение в память. Отображается окно
+     * не больше WINDOW байт; когда оно кончается, следующее отображается с текущей позиции.
+     */
+    private static final class MappedInput implements AutoCloseable {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long windowStart;
+        private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+        MappedInput(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+            buffer.order(order);
+            windowStart = position;
+        }
+
+        private long position() {
+            return windowStart + buffer.position();
+        }
+
+        void order(ByteOrder order) {
+            this.order = order;
+            buffer.order(order);
+        }
+
+        /** Следующий байт без продвижения или -1 в конце файла. */
+        int peek() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (position() >= size) {
+                    return -1;
+                }
+                map(position());
+            }
+            return buffer.get(buffer.position()) & 0xFF;
+        }
+
+        int read() throws IOException {
+            int c = peek();
+            if (c >= 0) {
+                buffer.position(buffer.position() + 1);
+            }
+            return c;
+        }
+
+        /** Гарантирует, что в buffer() подряд доступны bytes байт. */
+        void require(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                long position = position();
+                if (size - position < bytes) {
+                    throw new EOFException("Файл оборван на позиции " + position);
+                }
+                map(position);
+            }
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        void skip(long bytes) throws IOException {
+            long target = position() + bytes;
+            if (target > size) {
+                throw new EOFException("Файл оборван на позиции " + size);
+            }
+            if (target - windowStart <= buffer.limit()) {
+                buffer.position((int) (target - windowStart));
+            } else {
+                map(target);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class FloatArray {
+        float[] data = new float[1024];
+        int size;
+
+        void add(float value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+            data[size++] = value;
+        }
+
+        float[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private static final class IntArray {
+        int[] data;
+        int size;
+
+        IntArray() {
+            this(1024);
+        }
+
+        IntArray(int capacity) {
+            data = new int[Math.max(16, capacity)];
+        }
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+            data[size++] = value;
+        }
+
+        int[] toArray() {
+            return size == data.length ? data : Arrays.copyOf(data, size);
+        }
+    }
+}
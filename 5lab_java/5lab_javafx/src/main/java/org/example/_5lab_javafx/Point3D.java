@@ -0,0 +1,17 @@
+package org.example._5lab_javafx;
+
+class Point3D {
+    public double x, y, z;
+
+    public Point3D(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public Point3D normalize() {
+        double length = Math.sqrt(x*x + y*y + z*z);
+        if (length == 0) return this;
+        return new Point3D(x/length, y/length, z/length);
+    }
+}
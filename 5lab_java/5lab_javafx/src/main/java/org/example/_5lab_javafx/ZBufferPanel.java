@@ -0,0 +1,1548 @@
+package org.example._5lab_javafx;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class ZBufferPanel extends JPanel {
+    // Субпиксельная точность растеризатора: 4 бита дробной части (1/16 пикселя)
+    private static final int SUBPIXEL_BITS = 4;
+    private static final int SUBPIXEL_ONE = 1 << SUBPIXEL_BITS;
+    // Треугольники с вершинами дальше этой границы (в пикселях) обрезаются по ней,
+    // иначе функции рёбер в фиксированной точке переполнятся
+    private static final double GUARD_BAND = 1 << 22;
+    private static final long NO_VERTEX = Long.MIN_VALUE;
+    // Экран делится на тайлы TILE_SIZE x TILE_SIZE, каждый растеризуется независимо
+    private static final int TILE_SIZE = 64;
+    // Сколько треугольников преобразует одна задача на этапе подготовки
+    private static final int SETUP_GRAIN = 1024;
+    private static final int PARALLELISM = Integer.getInteger("zbuffer.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int BACKGROUND = 0xFF000000;
+    private static final double FOV = 300;
+    // Ближняя плоскость отсечения: вершина должна быть не ближе NEAR к глазу (FOV + z >= NEAR),
+    // иначе при проекции деление на FOV + z уходит в ноль и через него
+    private static final double NEAR = 1;
+    // Отбрасывать треугольники, повёрнутые к камере изнанкой (-Dzbuffer.cullBackFaces=false — рисовать все)
+    private static final boolean CULL_BACK_FACES =
+            Boolean.parseBoolean(System.getProperty("zbuffer.cullBackFaces", "true"));
+    // Иерархический z-буфер: тайл делится на блоки HIZ_BLOCK x HIZ_BLOCK
+    private static final int HIZ_BLOCK = 8;
+    private static final int HIZ_BLOCKS = TILE_SIZE / HIZ_BLOCK;
+    // Величин на вершину многоугольника при отсечении: x, y, z, освещённость, нормаль
+    private static final int CLIP_STRIDE = 7;
+    // Треугольник, обрезанный ближней плоскостью и четырьмя сторонами защитной полосы,
+    // получает не больше 3 + 5 вершин
+    private static final int CLIP_VERTICES = 8;
+    // Копия из InstanceField, чья ограничивающая сфера на экране меньше стольких пикселей
+    // в радиусе, рисуется не своей сеткой, а заменителем — квадратом, повёрнутым к камере
+    private static final double IMPOSTOR_PIXELS = Double.parseDouble(System.getProperty("zbuffer.impostorPixels", "2"));
+    // Два треугольника заменителя по углам (-h, -h), (h, -h), (h, h), (-h, h)
+    private static final int[] IMPOSTOR_INDICES = {0, 1, 2, 0, 2, 3};
+    // Не чаще стольких кадров в секунду: ввод, пришедший за паузу, попадёт в следующий кадр
+    private static final long FRAME_INTERVAL_NANOS = 1_000_000_000L / Integer.getInteger("zbuffer.maxFps", 60);
+    private static final boolean OVERLAY = Boolean.parseBoolean(System.getProperty("zbuffer.overlay", "true"));
+    // Освещение по Фонгу: фоновая составляющая (та же, что у Гуро), доля и степень блика
+    private static final double AMBIENT = 0.2;
+    private static final double SPECULAR = 0.5;
+    private static final int SHININESS_SQUARINGS = 5; // степень блика 2^5 = 32
+
+    /** Как закрашивать треугольники. */
+    enum Shading {
+        /** Освещение в вершинах, цвет пикселя считается при каждом прохождении теста глубины. */
+        GOURAUD("Гуро"),
+        /**
+         * Отложенное освещение: растеризация пишет в G-буфер только глубину, нормаль и
+         * номер материала, а освещение по Фонгу считается потом по разу на видимый пиксель.
+         */
+        DEFERRED_PHONG("Фонг (отложенное)");
+
+        private final String label;
+
+        Shading(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Сглаживание краёв мультисэмплингом: на пиксель хранится samples отсчётов глубины
+     * и цвета, покрытие проверяется в каждом, а закрашивается пиксель по разу на треугольник.
+     * Отсчёты раскиданы по повёрнутой сетке, смещения от точки пикселя — в 1/16 пикселя,
+     * то есть прямо в единицах SUBPIXEL_ONE.
+     */
+    enum Multisampling {
+        OFF("без сглаживания", new int[]{0, 0}),
+        MSAA_4X("MSAA 4x", new int[]{-2, -6, 6, -2, -6, 2, 2, 6}),
+        MSAA_8X("MSAA 8x", new int[]{1, -3, -1, 3, 5, 1, -3, -5, -5, 5, -7, -1, 3, 7, 7, -7});
+
+        private final String label;
+        final int samples;
+        final int[] offsets;
+        // Наибольшее смещение отсчёта по одной оси: на столько расширяется рамка треугольника
+        final int reach;
+
+        Multisampling(String label, int[] offsets) {
+            this.label = label;
+            this.samples = offsets.length / 2;
+            this.offsets = offsets;
+            int reach = 0;
+            for (int offset : offsets) {
+                reach = Math.max(reach, Math.abs(offset));
+            }
+            this.reach = reach;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    // Двойная буферизация: поток отрисовки пишет в back, EDT рисует image
+    private volatile BufferedImage image;
+    private BufferedImage back;
+    private int[] pixels;
+    // Держится, пока EDT выводит image: поток отрисовки не начнёт писать в буфер, который ещё на экране
+    private final Object presentLock = new Object();
+    private Mesh mesh;
+    private InstanceField field;
+    private Camera camera;
+    private Point3D lightDirection;
+    private Shading shading = Shading.GOURAUD;
+    private Multisampling multisampling = Multisampling.OFF;
+
+    // Ввод из EDT копится здесь и забирается в начале кадра одним куском,
+    // сколько бы событий ни пришло, пока рисовался предыдущий
+    private final Object lock = new Object();
+    private double pendingAngleX; // guarded by lock
+    private double pendingAngleY; // guarded by lock
+    private double pendingAngleZ; // guarded by lock
+    private double pendingZoom = 1; // guarded by lock
+    private Mesh pendingMesh; // guarded by lock
+    private InstanceField pendingField; // guarded by lock
+    private boolean fieldChanged; // guarded by lock
+    private Shading pendingShading; // guarded by lock
+    private Multisampling pendingMultisampling; // guarded by lock
+    private boolean renderRequested; // guarded by lock
+    private final FrameTimings timings = new FrameTimings();
+
+    // pool == null — всё считается в вызывающем потоке
+    private final ForkJoinPool pool;
+    // У каждого потока свои буферы цвета и глубины размером с тайл
+    private final ThreadLocal<TileBuffer> tileBuffers = ThreadLocal.withInitial(TileBuffer::new);
+
+    // Вершины кадра после преобразования камерой и проекции, по массиву на величину:
+    // экранные координаты в фиксированной точке (NO_VERTEX — вершина за защитной полосой
+    // или ближней плоскостью), координаты в пространстве камеры (для отсечения), глубина
+    // и освещённость. Каждая вершина считается один раз, сколько бы треугольников её ни делили
+    private long[] vertexX = new long[0];
+    private long[] vertexY = new long[0];
+    private double[] vertexViewX = new double[0];
+    private double[] vertexViewY = new double[0];
+    private double[] vertexZ = new double[0];
+    private double[] vertexLight = new double[0];
+    // Нормали вершин в пространстве камеры (нужны только отложенному освещению)
+    private float[] vertexNormalX = new float[0];
+    private float[] vertexNormalY = new float[0];
+    private float[] vertexNormalZ = new float[0];
+    private double[] viewMatrix;
+    private double[] normalMatrix;
+
+    // Вершины кадра нумеруются подряд: сначала сетка, затем видимые копии поля с полной
+    // геометрией, затем заменители; так же треугольники. Границы частей:
+    private int meshVertices;
+    private int meshTriangles;
+    private int instanceVertexEnd;
+    private int instanceTriangleEnd;
+    // Видимые копии после отсечения по BVH: номера и центры в пространстве камеры,
+    // для заменителей ещё половина стороны квадрата
+    private int[] visibleInstances = new int[0];
+    private double[] instanceView = new double[0];
+    private int instanceCount;
+    private int[] impostors = new int[0];
+    private double[] impostorView = new double[0];
+    private int impostorCount;
+    // Общая геометрия поля после поворота камерой: координаты, нормали и освещённость
+    // вершин base считаются раз на кадр, у копий остаются только сдвиг и масштаб
+    private double[] baseView = new double[0];
+    private float[] baseNormal = new float[0];
+    private double[] baseLight = new double[0];
+    // Заменитель освещается средней освещённостью вершин base, чтобы не вспыхивать при смене детализации
+    private double impostorLight;
+
+    // Треугольники кадра после преобразования и проекции. Для треугольника t:
+    // fixedXY[6t..6t+5] — вершины в фиксированной точке (обход уже приведён к одному направлению),
+    // attributes[6t..6t+5] — глубина и освещённость трёх вершин, colors[t] — цвет,
+    // bounds[4t..4t+3] — ограничивающий прямоугольник в пикселях (minX > maxX — не рисуется),
+    // minDepth[t] — нижняя граница глубины (для иерархического z-буфера),
+    // normals[9t..9t+8] — нормали трёх вершин в том же порядке (только при отложенном освещении).
+    // Треугольники, пересекающие ближнюю плоскость или защитную полосу, помечаются в needsClip,
+    // а их обрезанные части дописываются в те же массивы после треугольников кадра
+    private long[] fixedXY = new long[0];
+    private double[] attributes = new double[0];
+    private int[] colors = new int[0];
+    private int[] bounds = new int[0];
+    private float[] minDepth = new float[0];
+    private float[] normals = new float[0];
+    private boolean[] needsClip = new boolean[0];
+
+    // Списки треугольников по тайлам в порядке подачи: при равной глубине побеждает
+    // первый нарисованный, так что результат не зависит от числа потоков
+    private final int[][] bins;
+    private final int[] binSizes;
+
+    public ZBufferPanel(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) back.getRaster().getDataBuffer()).getData();
+        this.mesh = Mesh.merge(new ArrayList<>());
+        this.camera = new Camera();
+        this.lightDirection = new Point3D(0, 0, 200).normalize(); //источник света
+        this.pool = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+        this.bins = new int[tilesX * tilesY][16];
+        this.binSizes = new int[tilesX * tilesY];
+
+        Thread thread = new Thread(this::renderLoop, "zbuffer-render");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Сетка и камера меняются только в начале кадра, в потоке отрисовки; отсюда изменения
+    // лишь запоминаются, а нарисует их следующий кадр после requestRender()
+
+    public void setMesh(Mesh mesh) {
+        synchronized (lock) {
+            pendingMesh = mesh;
+        }
+    }
+
+    /** Поле копий, рисуемое вместе с сеткой (null — без поля). */
+    public void setInstances(InstanceField field) {
+        synchronized (lock) {
+            pendingField = field;
+            fieldChanged = true;
+        }
+    }
+
+    public void rotateCamera(double angleX, double angleY, double angleZ) {
+        synchronized (lock) {
+            pendingAngleX += angleX;
+            pendingAngleY += angleY;
+            pendingAngleZ += angleZ;
+        }
+    }
+
+    public void zoomCamera(double scale) {
+        synchronized (lock) {
+            pendingZoom *= scale;
+        }
+    }
+
+    public void setShading(Shading shading) {
+        synchronized (lock) {
+            pendingShading = shading;
+        }
+    }
+
+    public void setMultisampling(Multisampling multisampling) {
+        synchronized (lock) {
+            pendingMultisampling = multisampling;
+        }
+    }
+
+    /** Просит поток отрисовки нарисовать кадр; запросы, пришедшие до его начала, сливаются в один. */
+    public void requestRender() {
+        synchronized (lock) {
+            renderRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    FrameTimings getTimings() {
+        return timings;
+    }
+
+    private void renderLoop() {
+        long lastFrameStart = System.nanoTime() - FRAME_INTERVAL_NANOS;
+        while (true) {
+            synchronized (lock) {
+                while (!renderRequested) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                renderRequested = false;
+            }
+            // Ограничение частоты кадров; пока ждём, ввод продолжает копиться
+            long wait = lastFrameStart + FRAME_INTERVAL_NANOS - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            lastFrameStart = System.nanoTime();
+            renderFrame();
+        }
+    }
+
+    /**
+     * Кадр рисуется в пять этапов: преобразование и проекция вершин, подготовка
+     * треугольников (оба параллельно по диапазонам), отсечение ближней плоскостью и
+     * раскладка по тайлам (последовательно, в порядке подачи) и растеризация тайлов
+     * (параллельно, каждый тайл в своих буферах, с отбрасыванием по иерархическому z-буферу).
+     * Готовый кадр меняется местами с показанным и выводится в paintComponent.
+     */
+    private void renderFrame() {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            camera.rotate(pendingAngleX, pendingAngleY, pendingAngleZ);
+            camera.zoom(pendingZoom);
+            pendingAngleX = 0;
+            pendingAngleY = 0;
+            pendingAngleZ = 0;
+            pendingZoom = 1;
+            if (pendingMesh != null) {
+                mesh = pendingMesh;
+                pendingMesh = null;
+            }
+            if (fieldChanged) {
+                field = pendingField;
+                pendingField = null;
+                fieldChanged = false;
+            }
+            if (pendingShading != null) {
+                shading = pendingShading;
+                pendingShading = null;
+            }
+            if (pendingMultisampling != null) {
+                multisampling = pendingMultisampling;
+                pendingMultisampling = null;
+            }
+        }
+        synchronized (presentLock) {
+            // Дожидаемся, если EDT ещё выводит прошлый кадр из этого буфера
+        }
+
+        // Матрицы камеры строятся один раз на кадр
+        viewMatrix = camera.viewMatrix();
+        normalMatrix = camera.normalMatrix();
+        cullInstances();
+
+        int baseVertices = field == null ? 0 : field.base.getVertexCount();
+        int baseTriangles = field == null ? 0 : field.base.getTriangleCount();
+        meshVertices = mesh.getVertexCount();
+        meshTriangles = mesh.getTriangleCount();
+        instanceVertexEnd = meshVertices + instanceCount * baseVertices;
+        instanceTriangleEnd = meshTriangles + instanceCount * baseTriangles;
+        int vertices = instanceVertexEnd + 4 * impostorCount;
+        if (vertexX.length < vertices) {
+            vertexX = new long[vertices];
+            vertexY = new long[vertices];
+            vertexViewX = new double[vertices];
+            vertexViewY = new double[vertices];
+            vertexZ = new double[vertices];
+            vertexLight = new double[vertices];
+            vertexNormalX = new float[vertices];
+            vertexNormalY = new float[vertices];
+            vertexNormalZ = new float[vertices];
+        }
+        int count = instanceTriangleEnd + 2 * impostorCount;
+        if (needsClip.length < count) {
+            needsClip = new boolean[count];
+        }
+        ensureTriangleCapacity(count);
+
+        runRange(0, vertices, SETUP_GRAIN, this::transformVertices);
+        runRange(0, count, SETUP_GRAIN, this::setupTriangles);
+        int total = clipTriangles(count);
+        binTriangles(total);
+        long transformed = System.nanoTime();
+        runRange(0, tilesX * tilesY, 1, this::renderTiles);
+        long rasterized = System.nanoTime();
+
+        BufferedImage finished = back;
+        back = image;
+        pixels = ((DataBufferInt) back.getRaster().getDataBuffer()).getData();
+        image = finished;
+        timings.recordFrame(transformed - start, rasterized - transformed, rasterized);
+        repaint();
+    }
+
+    private void transformVertices(int from, int to) {
+        float[] positions = mesh.positions;
+        float[] normals = mesh.normals;
+        double[] m = viewMatrix;
+        double[] n = normalMatrix;
+        boolean deferred = shading == Shading.DEFERRED_PHONG;
+
+        int v = from;
+        for (int end = Math.min(to, meshVertices); v < end; v++) {
+            double px = positions[3 * v];
+            double py = positions[3 * v + 1];
+            double pz = positions[3 * v + 2];
+            double x = m[0] * px + m[1] * py + m[2] * pz + m[3];
+            double y = m[4] * px + m[5] * py + m[6] * pz + m[7];
+            double z = m[8] * px + m[9] * py + m[10] * pz + m[11];
+
+            // Рассчитываем освещение вершины по повёрнутой нормали
+            double nx = normals[3 * v];
+            double ny = normals[3 * v + 1];
+            double nz = normals[3 * v + 2];
+            double rx = n[0] * nx + n[1] * ny + n[2] * nz;
+            double ry = n[3] * nx + n[4] * ny + n[5] * nz;
+            double rz = n[6] * nx + n[7] * ny + n[8] * nz;
+            if (deferred) {
+                vertexNormalX[v] = (float) rx;
+                vertexNormalY[v] = (float) ry;
+                vertexNormalZ[v] = (float) rz;
+            } else {
+                vertexLight[v] = calculateLightIntensity(rx, ry, rz);
+            }
+            projectVertex(v, x, y, z);
+        }
+
+        if (v < to && v < instanceVertexEnd) {
+            // Вершина копии: повёрнутая вершина base, масштаб и центр копии в пространстве камеры
+            int baseVertices = field.base.getVertexCount();
+            int local = v - meshVertices;
+            int slot = local / baseVertices;
+            int k = local - slot * baseVertices;
+            for (int end = Math.min(to, instanceVertexEnd); v < end; v++) {
+                if (k == baseVertices) {
+                    k = 0;
+                    slot++;
+                }
+                double s = field.scales[visibleInstances[slot]];
+                if (deferred) {
+                    vertexNormalX[v] = baseNormal[3 * k];
+                    vertexNormalY[v] = baseNormal[3 * k + 1];
+                    vertexNormalZ[v] = baseNormal[3 * k + 2];
+                } else {
+                    vertexLight[v] = baseLight[k];
+                }
+                projectVertex(v, instanceView[3 * slot] + s * baseView[3 * k],
+                        instanceView[3 * slot + 1] + s * baseView[3 * k + 1],
+                        instanceView[3 * slot + 2] + s * baseView[3 * k + 2]);
+                k++;
+            }
+        }
+
+        // Углы заменителей: квадрат в плоскости экрана на глубине центра копии
+        for (; v < to; v++) {
+            int local = v - instanceVertexEnd;
+            int slot = local >> 2;
+            int corner = local & 3;
+            double h = impostorView[4 * slot + 3];
+            if (deferred) {
+                vertexNormalX[v] = 0;
+                vertexNormalY[v] = 0;
+                vertexNormalZ[v] = 1;
+            } else {
+                vertexLight[v] = impostorLight;
+            }
+            projectVertex(v, impostorView[4 * slot] + (corner == 1 || corner == 2 ? h : -h),
+                    impostorView[4 * slot + 1] + (corner >= 2 ? h : -h), impostorView[4 * slot + 2]);
+        }
+    }
+
+    private void projectVertex(int v, double x, double y, double z) {
+        vertexViewX[v] = x;
+        vertexViewY[v] = y;
+        vertexZ[v] = z;
+        vertexX[v] = NO_VERTEX;
+        if (FOV + z < NEAR) {
+            return; // за ближней плоскостью, треугольники с ней отсекаются отдельно
+        }
+
+        // Проекция
+        double scale = FOV / (FOV + z);
+        double sx = x * scale + width / 2;
+        double sy = -y * scale + height / 2;
+        if (Math.abs(sx) < GUARD_BAND && Math.abs(sy) < GUARD_BAND) {
+            vertexX[v] = Math.round(sx * SUBPIXEL_ONE);
+            vertexY[v] = Math.round(sy * SUBPIXEL_ONE);
+        }
+    }
+
+    /**
+     * Отсекает копии поля по пирамиде видимости через BVH и делит видимые на рисуемые
+     * своей сеткой и заменители; заодно поворачивает камерой общую геометрию base.
+     */
+    private void cullInstances() {
+        instanceCount = 0;
+        impostorCount = 0;
+        if (field == null) {
+            return;
+        }
+        int size = field.size();
+        if (visibleInstances.length < size) {
+            visibleInstances = new int[size];
+            instanceView = new double[3 * size];
+            impostors = new int[size];
+            impostorView = new double[4 * size];
+        }
+        int visible = field.cull(frustumPlanes(), visibleInstances);
+
+        double[] m = viewMatrix;
+        // Камера поворачивает и равномерно масштабирует, масштаб — длина столбца матрицы
+        double zoom = Math.sqrt(m[0] * m[0] + m[4] * m[4] + m[8] * m[8]);
+        for (int k = 0; k < visible; k++) {
+            int i = visibleInstances[k];
+            double px = field.centers[3 * i];
+            double py = field.centers[3 * i + 1];
+            double pz = field.centers[3 * i + 2];
+            double x = m[0] * px + m[1] * py + m[2] * pz + m[3];
+            double y = m[4] * px + m[5] * py + m[6] * pz + m[7];
+            double z = m[8] * px + m[9] * py + m[10] * pz + m[11];
+            double radius = zoom * field.scales[i] * field.baseRadius;
+            // Копии у ближней плоскости всегда рисуются целиком, их треугольники отсекаются
+            if (FOV + z - radius < NEAR || radius * FOV / (FOV + z) >= IMPOSTOR_PIXELS) {
+                visibleInstances[instanceCount] = i;
+                instanceView[3 * instanceCount] = x;
+                instanceView[3 * instanceCount + 1] = y;
+                instanceView[3 * instanceCount + 2] = z;
+                instanceCount++;
+            } else {
+                // Сторона квадрата равна радиусу сферы — около площади проекции тетраэдра
+                impostors[impostorCount] = i;
+                impostorView[4 * impostorCount] = x;
+                impostorView[4 * impostorCount + 1] = y;
+                impostorView[4 * impostorCount + 2] = z;
+                impostorView[4 * impostorCount + 3] = radius / 2;
+                impostorCount++;
+            }
+        }
+
+        Mesh base = field.base;
+        int baseVertices = base.getVertexCount();
+        if (baseLight.length < baseVertices) {
+            baseView = new double[3 * baseVertices];
+            baseNormal = new float[3 * baseVertices];
+            baseLight = new double[baseVertices];
+        }
+        double[] n = normalMatrix;
+        impostorLight = 0;
+        for (int k = 0; k < baseVertices; k++) {
+            double px = base.positions[3 * k];
+            double py = base.positions[3 * k + 1];
+            double pz = base.positions[3 * k + 2];
+            baseView[3 * k] = m[0] * px + m[1] * py + m[2] * pz;
+            baseView[3 * k + 1] = m[4] * px + m[5] * py + m[6] * pz;
+            baseView[3 * k + 2] = m[8] * px + m[9] * py + m[10] * pz;
+            double nx = base.normals[3 * k];
+            double ny = base.normals[3 * k + 1];
+            double nz = base.normals[3 * k + 2];
+            double rx = n[0] * nx + n[1] * ny + n[2] * nz;
+            double ry = n[3] * nx + n[4] * ny + n[5] * nz;
+            double rz = n[6] * nx + n[7] * ny + n[8] * nz;
+            baseNormal[3 * k] = (float) rx;
+            baseNormal[3 * k + 1] = (float) ry;
+            baseNormal[3 * k + 2] = (float) rz;
+            baseLight[k] = calculateLightIntensity(rx, ry, rz);
+            impostorLight += baseLight[k] / baseVertices;
+        }
+    }
+
+    /**
+     * Плоскости пирамиды видимости в мировых координатах для InstanceField.cull:
+     * четыре стороны экрана и ближняя плоскость. В пространстве камеры точка видна,
+     * если её проекция внутри окна, то есть x * FOV / (FOV + z) между -cx и width - cx;
+     * плоскость (a, b, c, d) переносится в мир как (Mᵀ(a, b, c), (a, b, c)·t + d).
+     */
+    private double[] frustumPlanes() {
+        double cx = width / 2;
+        double cy = height / 2;
+        double rx = width - cx;
+        double by = height - cy;
+        double[] view = {
+                FOV, 0, cx, cx * FOV,
+                -FOV, 0, rx, rx * FOV,
+                0, -FOV, cy, cy * FOV,
+                0, FOV, by, by * FOV,
+                0, 0, 1, FOV - NEAR,
+        };
+        double[] m = viewMatrix;
+        double[] planes = new double[view.length];
+        for (int p = 0; p < view.length; p += 4) {
+            double a = view[p];
+            double b = view[p + 1];
+            double c = view[p + 2];
+            double wa = a * m[0] + b * m[4] + c * m[8];
+            double wb = a * m[1] + b * m[5] + c * m[9];
+            double wc = a * m[2] + b * m[6] + c * m[10];
+            double wd = a * m[3] + b * m[7] + c * m[11] + view[p + 3];
+            double length = Math.sqrt(wa * wa + wb * wb + wc * wc);
+            planes[p] = wa / length;
+            planes[p + 1] = wb / length;
+            planes[p + 2] = wc / length;
+            planes[p + 3] = wd / length;
+        }
+        return planes;
+    }
+
+    private void ensureTriangleCapacity(int count) {
+        if (colors.length < count) {
+            // Обрезанные треугольники добавляются по одному, поэтому растём с запасом
+            count = Math.max(count, colors.length + colors.length / 2);
+            fixedXY = Arrays.copyOf(fixedXY, 6 * count);
+            attributes = Arrays.copyOf(attributes, 6 * count);
+            colors = Arrays.copyOf(colors, count);
+            bounds = Arrays.copyOf(bounds, 4 * count);
+            minDepth = Arrays.copyOf(minDepth, count);
+        }
+        if (shading == Shading.DEFERRED_PHONG && normals.length < 9 * count) {
+            normals = Arrays.copyOf(normals, 9 * Math.max(count, colors.length));
+        }
+    }
+
+    private void setupTriangles(int from, int to) {
+        int t = from;
+        for (int end = Math.min(to, meshTriangles); t < end; t++) {
+            setupTriangle(t, mesh.indices[3 * t], mesh.indices[3 * t + 1], mesh.indices[3 * t + 2], mesh.colors[t]);
+        }
+        if (t < to && t < instanceTriangleEnd) {
+            // Копии идут подряд, номер копии и треугольника base ведём без деления на каждом шаге
+            Mesh base = field.base;
+            int triangles = base.getTriangleCount();
+            int local = t - meshTriangles;
+            int slot = local / triangles;
+            int triangle = local - slot * triangles;
+            int first = meshVertices + slot * base.getVertexCount();
+            int color = field.colors[visibleInstances[slot]];
+            for (int end = Math.min(to, instanceTriangleEnd); t < end; t++) {
+                if (triangle == triangles) {
+                    triangle = 0;
+                    slot++;
+                    first += base.getVertexCount();
+                    color = field.colors[visibleInstances[slot]];
+                }
+                setupTriangle(t, first + base.indices[3 * triangle], first + base.indices[3 * triangle + 1],
+                        first + base.indices[3 * triangle + 2], tint(color, base.colors[triangle]));
+                triangle++;
+            }
+        }
+        for (; t < to; t++) {
+            setupTriangle(t, cornerOf(t, 0), cornerOf(t, 1), cornerOf(t, 2), colorOf(t));
+        }
+    }
+
+    /** Номер вершины кадра в углу k треугольника кадра t (сетка, копия поля или заменитель). */
+    private int cornerOf(int t, int k) {
+        if (t < meshTriangles) {
+            return mesh.indices[3 * t + k];
+        }
+        if (t < instanceTriangleEnd) {
+            Mesh base = field.base;
+            int local = t - meshTriangles;
+            int slot = local / base.getTriangleCount();
+            int triangle = local - slot * base.getTriangleCount();
+            return meshVertices + slot * base.getVertexCount() + base.indices[3 * triangle + k];
+        }
+        int local = t - instanceTriangleEnd;
+        return instanceVertexEnd + 4 * (local >> 1) + IMPOSTOR_INDICES[3 * (local & 1) + k];
+    }
+
+    /** Цвет треугольника кадра t: у копий цвет копии, затенённый цветом грани base. */
+    private int colorOf(int t) {
+        if (t < meshTriangles) {
+            return mesh.colors[t];
+        }
+        if (t < instanceTriangleEnd) {
+            int triangles = field.base.getTriangleCount();
+            int local = t - meshTriangles;
+            int slot = local / triangles;
+            return tint(field.colors[visibleInstances[slot]], field.base.colors[local - slot * triangles]);
+        }
+        return field.colors[impostors[(t - instanceTriangleEnd) >> 1]];
+    }
+
+    private static int tint(int rgb, int shade) {
+        return (((rgb >> 16) & 0xFF) * ((shade >> 16) & 0xFF) / 255) << 16
+                | (((rgb >> 8) & 0xFF) * ((shade >> 8) & 0xFF) / 255) << 8
+                | (rgb & 0xFF) * (shade & 0xFF) / 255;
+    }
+
+    private void setupTriangle(int t, int a, int b, int c, int rgb) {
+        boolean behindA = FOV + vertexZ[a] < NEAR;
+        boolean behindB = FOV + vertexZ[b] < NEAR;
+        boolean behindC = FOV + vertexZ[c] < NEAR;
+        // Вершина за ближней плоскостью тоже NO_VERTEX; целиком за ней треугольник не виден
+        boolean outside = vertexX[a] == NO_VERTEX || vertexX[b] == NO_VERTEX || vertexX[c] == NO_VERTEX;
+        needsClip[t] = outside && !(behindA && behindB && behindC);
+        if (outside) {
+            bounds[4 * t] = 0;
+            bounds[4 * t + 1] = -1; // рисовать нечего (или нарисуют обрезанные части)
+            return;
+        }
+        boolean flip = emitTriangle(t, rgb,
+                vertexX[a], vertexY[a], vertexX[b], vertexY[b], vertexX[c], vertexY[c],
+                vertexZ[a], vertexZ[b], vertexZ[c],
+                vertexLight[a], vertexLight[b], vertexLight[c]);
+        if (shading == Shading.DEFERRED_PHONG) {
+            putNormal(t, 0, vertexNormalX[a], vertexNormalY[a], vertexNormalZ[a]);
+            putNormal(t, flip ? 2 : 1, vertexNormalX[b], vertexNormalY[b], vertexNormalZ[b]);
+            putNormal(t, flip ? 1 : 2, vertexNormalX[c], vertexNormalY[c], vertexNormalZ[c]);
+        }
+    }
+
+    private void putNormal(int t, int corner, double nx, double ny, double nz) {
+        int i = 9 * t + 3 * corner;
+        normals[i] = (float) nx;
+        normals[i + 1] = (float) ny;
+        normals[i + 2] = (float) nz;
+    }
+
+    /**
+     * Отсекает помеченные треугольники в пространстве камеры ближней плоскостью, а затем
+     * плоскостями, которые проецируются в стороны защитной полосы. Оставшийся выпуклый
+     * многоугольник проецируется и дописывается веером треугольников после count.
+     * Выполняется последовательно, поэтому номера новых треугольников не зависят от числа потоков.
+     *
+     * @return общее число треугольников кадра вместе с обрезанными
+     */
+    private int clipTriangles(int count) {
+        int total = count;
+        double nearZ = NEAR - FOV;
+        // Экранная x = x * FOV / (FOV + z) + cx лежит внутри полосы |x| <= band, пока
+        // x * FOV + (cx + band) * (FOV + z) >= 0 и (band - cx) * (FOV + z) - x * FOV >= 0;
+        // так же по y. Пиксель запаса покрывает ошибку округления точек пересечения
+        double band = GUARD_BAND - 1;
+        double cx = width / 2;
+        double cy = height / 2;
+        double[] guardPlanes = {
+                FOV, 0, cx + band, (cx + band) * FOV,
+                -FOV, 0, band - cx, (band - cx) * FOV,
+                0, -FOV, cy + band, (cy + band) * FOV,
+                0, FOV, band - cy, (band - cy) * FOV,
+        };
+        // Многоугольник после отсечения: x, y, z, освещённость и нормаль вершин;
+        // плоскости полосы отсекают из polygon в clipped, и буферы меняются местами
+        double[] polygon = new double[CLIP_STRIDE * CLIP_VERTICES];
+        double[] clipped = new double[CLIP_STRIDE * CLIP_VERTICES];
+        long[] projected = new long[2 * CLIP_VERTICES];
+
+        for (int t = 0; t < count; t++) {
+            if (!needsClip[t]) {
+                continue;
+            }
+            int vertices = 0;
+            for (int k = 0; k < 3; k++) {
+                int a = cornerOf(t, k);
+                int b = cornerOf(t, (k + 1) % 3);
+                boolean insideA = vertexZ[a] >= nearZ;
+                boolean insideB = vertexZ[b] >= nearZ;
+                if (insideA) {
+                    putVertex(polygon, vertices++, a, b, 0);
+                }
+                if (insideA != insideB) {
+                    // Точка пересечения ребра a -> b с плоскостью z = nearZ
+                    putVertex(polygon, vertices, a, b, (nearZ - vertexZ[a]) / (vertexZ[b] - vertexZ[a]));
+                    polygon[CLIP_STRIDE * vertices++ + 2] = nearZ;
+                }
+            }
+
+            for (int p = 0; p < guardPlanes.length && vertices >= 3; p += 4) {
+                vertices = clipPolygon(polygon, vertices, guardPlanes, p, clipped);
+                double[] swap = polygon;
+                polygon = clipped;
+                clipped = swap;
+            }
+            if (vertices < 3) {
+                continue; // целиком за защитной полосой
+            }
+
+            for (int k = 0; k < vertices; k++) {
+                int p = CLIP_STRIDE * k;
+                double scale = FOV / (FOV + polygon[p + 2]);
+                double sx = polygon[p] * scale + width / 2;
+                double sy = -polygon[p + 1] * scale + height / 2;
+                projected[2 * k] = Math.round(sx * SUBPIXEL_ONE);
+                projected[2 * k + 1] = Math.round(sy * SUBPIXEL_ONE);
+            }
+
+            ensureTriangleCapacity(total + vertices - 2);
+            for (int k = 1; k + 1 < vertices; k++) {
+                int p = CLIP_STRIDE * k;
+                int q = p + CLIP_STRIDE;
+                boolean flip = emitTriangle(total, colorOf(t),
+                        projected[0], projected[1],
+                        projected[2 * k], projected[2 * k + 1],
+                        projected[2 * k + 2], projected[2 * k + 3],
+                        polygon[2], polygon[p + 2], polygon[q + 2],
+                        polygon[3], polygon[p + 3], polygon[q + 3]);
+                if (shading == Shading.DEFERRED_PHONG) {
+                    putNormal(total, 0, polygon[4], polygon[5], polygon[6]);
+                    putNormal(total, flip ? 2 : 1, polygon[p + 4], polygon[p + 5], polygon[p + 6]);
+                    putNormal(total, flip ? 1 : 2, polygon[q + 4], polygon[q + 5], polygon[q + 6]);
+                }
+                total++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Отсекает многоугольник in из vertices вершин полупространством
+     * a * x + b * y + c * z + d >= 0, где (a, b, c, d) = plane[p..p+3], и пишет результат в out.
+     * Вершины, целиком лежащие внутри, копируются без изменений.
+     *
+     * @return число вершин результата (меньше трёх — ничего не осталось)
+     */
+    private static int clipPolygon(double[] in, int vertices, double[] plane, int p, double[] out) {
+        int result = 0;
+        for (int k = 0; k < vertices; k++) {
+            int a = CLIP_STRIDE * k;
+            int b = CLIP_STRIDE * ((k + 1) % vertices);
+            double da = plane[p] * in[a] + plane[p + 1] * in[a + 1] + plane[p + 2] * in[a + 2] + plane[p + 3];
+            double db = plane[p] * in[b] + plane[p + 1] * in[b + 1] + plane[p + 2] * in[b + 2] + plane[p + 3];
+            if (da >= 0) {
+                System.arraycopy(in, a, out, CLIP_STRIDE * result++, CLIP_STRIDE);
+            }
+            if ((da >= 0) != (db >= 0)) {
+                double s = da / (da - db);
+                int o = CLIP_STRIDE * result++;
+                for (int i = 0; i < CLIP_STRIDE; i++) {
+                    out[o + i] = in[a + i] + s * (in[b + i] - in[a + i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Записывает в вершину k многоугольника точку a + s * (b - a) со всеми величинами. */
+    private void putVertex(double[] polygon, int k, int a, int b, double s) {
+        int p = CLIP_STRIDE * k;
+        polygon[p] = vertexViewX[a] + s * (vertexViewX[b] - vertexViewX[a]);
+        polygon[p + 1] = vertexViewY[a] + s * (vertexViewY[b] - vertexViewY[a]);
+        polygon[p + 2] = vertexZ[a] + s * (vertexZ[b] - vertexZ[a]);
+        polygon[p + 3] = vertexLight[a] + s * (vertexLight[b] - vertexLight[a]);
+        polygon[p + 4] = vertexNormalX[a] + s * (vertexNormalX[b] - vertexNormalX[a]);
+        polygon[p + 5] = vertexNormalY[a] + s * (vertexNormalY[b] - vertexNormalY[a]);
+        polygon[p + 6] = vertexNormalZ[a] + s * (vertexNormalZ[b] - vertexNormalZ[a]);
+    }
+
+    /**
+     * Записывает треугольник в ячейку t: отбрасывает вырожденные и (если включено)
+     * повёрнутые изнанкой, приводит обход к одному направлению и считает
+     * ограничивающий прямоугольник и нижнюю границу глубины.
+     *
+     * @return поменялись ли местами вторая и третья вершины
+     */
+    private boolean emitTriangle(int t, int rgb, long x0, long y0, long x1, long y1, long x2, long y2,
+                              double z0, double z1, double z2, double i0, double i1, double i2) {
+        bounds[4 * t] = 0;
+        bounds[4 * t + 1] = -1; // пока считаем, что рисовать нечего
+
+        long area = edge(x0, y0, x1, y1, x2, y2);
+        if (area == 0) {
+            return false; // вырожденный треугольник
+        }
+        // Лицевые грани сетки обходятся против часовой стрелки, если смотреть снаружи;
+        // на экране (ось y вниз) это даёт area < 0
+        boolean flip = area < 0;
+        if (CULL_BACK_FACES && !flip) {
+            return false;
+        }
+        // Приводим обход к одному направлению, тогда внутри все функции рёбер >= 0
+        int f = 6 * t;
+        fixedXY[f] = x0;
+        fixedXY[f + 1] = y0;
+        fixedXY[f + 2] = flip ? x2 : x1;
+        fixedXY[f + 3] = flip ? y2 : y1;
+        fixedXY[f + 4] = flip ? x1 : x2;
+        fixedXY[f + 5] = flip ? y1 : y2;
+        attributes[f] = z0;
+        attributes[f + 1] = flip ? z2 : z1;
+        attributes[f + 2] = flip ? z1 : z2;
+        attributes[f + 3] = i0;
+        attributes[f + 4] = flip ? i2 : i1;
+        attributes[f + 5] = flip ? i1 : i2;
+        colors[t] = rgb;
+        // Глубина внутри — выпуклая комбинация вершин; запас в одно значение float
+        // покрывает ошибку округления при пошаговой интерполяции
+        minDepth[t] = Math.nextDown((float) Math.min(z0, Math.min(z1, z2)));
+
+        // Ограничивающий прямоугольник в целых пикселях, обрезанный по экрану; при
+        // мультисэмплинге в него попадают и пиксели, задетые только смещёнными отсчётами
+        int reach = multisampling.reach;
+        bounds[4 * t] = (int) Math.max(0, (Math.min(x0, Math.min(x1, x2)) - reach + SUBPIXEL_ONE - 1) >> SUBPIXEL_BITS);
+        bounds[4 * t + 1] = (int) Math.min(width - 1, (Math.max(x0, Math.max(x1, x2)) + reach) >> SUBPIXEL_BITS);
+        bounds[4 * t + 2] = (int) Math.max(0, (Math.min(y0, Math.min(y1, y2)) - reach + SUBPIXEL_ONE - 1) >> SUBPIXEL_BITS);
+        bounds[4 * t + 3] = (int) Math.min(height - 1, (Math.max(y0, Math.max(y1, y2)) + reach) >> SUBPIXEL_BITS);
+        return flip;
+    }
+
+    /** Раскладывает треугольники по тайлам, которые задевает их ограничивающий прямоугольник. */
+    private void binTriangles(int count) {
+        Arrays.fill(binSizes, 0);
+        for (int t = 0; t < count; t++) {
+            int b = 4 * t;
+            if (bounds[b] > bounds[b + 1] || bounds[b + 2] > bounds[b + 3]) {
+                continue;
+            }
+            int tx0 = bounds[b] / TILE_SIZE;
+            int tx1 = bounds[b + 1] / TILE_SIZE;
+            int ty0 = bounds[b + 2] / TILE_SIZE;
+            int ty1 = bounds[b + 3] / TILE_SIZE;
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int tile = ty * tilesX + tx;
+                    if (binSizes[tile] == bins[tile].length) {
+                        bins[tile] = Arrays.copyOf(bins[tile], 2 * bins[tile].length);
+                    }
+                    bins[tile][binSizes[tile]++] = t;
+                }
+            }
+        }
+    }
+
+    private void renderTiles(int from, int to) {
+        TileBuffer buffer = tileBuffers.get();
+        for (int tile = from; tile < to; tile++) {
+            renderTile(tile, buffer);
+        }
+    }
+
+    private void renderTile(int tile, TileBuffer buffer) {
+        int originX = (tile % tilesX) * TILE_SIZE;
+        int originY = (tile / tilesX) * TILE_SIZE;
+        int tileWidth = Math.min(TILE_SIZE, width - originX);
+        int tileHeight = Math.min(TILE_SIZE, height - originY);
+
+        buffer.clear(tileWidth, tileHeight, multisampling.samples);
+        int[] bin = bins[tile];
+        for (int k = 0; k < binSizes[tile]; k++) {
+            int t = bin[k];
+            int minX = Math.max(bounds[4 * t], originX) - originX;
+            int maxX = Math.min(bounds[4 * t + 1], originX + tileWidth - 1) - originX;
+            int minY = Math.max(bounds[4 * t + 2], originY) - originY;
+            int maxY = Math.min(bounds[4 * t + 3], originY + tileHeight - 1) - originY;
+            if (minX > maxX || minY > maxY || buffer.occluded(minDepth[t], minX, maxX, minY, maxY)) {
+                continue;
+            }
+            rasterizeTriangle(t, buffer, originX, originY, tileWidth, tileHeight);
+            buffer.markDirty(minX, maxX, minY, maxY);
+        }
+
+        // Переносим тайл в изображение; пиксели, которых не коснулся ни один треугольник, — фон.
+        // При отложенном освещении здесь же, по разу на видимый пиксель, считается Фонг
+        boolean deferred = shading == Shading.DEFERRED_PHONG;
+        if (buffer.samples > 1) {
+            resolveTile(buffer, originX, originY, tileWidth, tileHeight, deferred);
+            return;
+        }
+        for (int y = 0; y < tileHeight; y++) {
+            int src = y * TILE_SIZE;
+            int dst = (originY + y) * width + originX;
+            for (int x = 0; x < tileWidth; x++) {
+                if (buffer.stamp[src + x] != buffer.generation) {
+                    pixels[dst + x] = BACKGROUND;
+                } else if (deferred) {
+                    pixels[dst + x] = phong(colors[buffer.material[src + x]], buffer.normal[src + x]);
+                } else {
+                    pixels[dst + x] = buffer.color[src + x];
+                }
+            }
+        }
+    }
+
+    /**
+     * Сводит отсчёты тайла в пиксели изображения: цвет пикселя — среднее цветов его
+     * отсчётов, непокрытые отсчёты дают фон. При отложенном освещении Фонг считается
+     * на отсчёт, но соседние отсчёты одного треугольника с той же нормалью (внутри
+     * треугольника это все отсчёты пикселя) берут уже посчитанный цвет.
+     */
+    private void resolveTile(TileBuffer buffer, int originX, int originY, int tileWidth, int tileHeight,
+                             boolean deferred) {
+        int samples = buffer.samples;
+        int shift = Integer.numberOfTrailingZeros(samples); // отсчётов 4 или 8
+        int half = samples / 2;
+        int[] stamp = buffer.stamp;
+        int generation = buffer.generation;
+        for (int y = 0; y < tileHeight; y++) {
+            int dst = (originY + y) * width + originX;
+            for (int x = 0; x < tileWidth; x++) {
+                int index = y * TILE_SIZE + x;
+                if (stamp[index] != generation) {
+                    pixels[dst + x] = BACKGROUND;
+                    continue;
+                }
+                int first = index * samples;
+                if (!deferred && allEqual(buffer.color, first, samples)) {
+                    pixels[dst + x] = buffer.color[first]; // пиксель целиком внутри одного треугольника
+                    continue;
+                }
+                // Красный и синий складываются парой в одном int: сумма восьми каналов
+                // не больше 2040 и не залезает в соседнее 16-битное поле
+                int rb = 0;
+                int g = 0;
+                int lastMaterial = -1;
+                int lastNormal = 0;
+                int lastColor = BACKGROUND;
+                for (int i = first; i < first + samples; i++) {
+                    int rgb;
+                    if (!deferred) {
+                        rgb = buffer.color[i];
+                    } else if (buffer.material[i] < 0) {
+                        rgb = BACKGROUND; // отсчёт не покрыт
+                    } else if (buffer.material[i] == lastMaterial && buffer.normal[i] == lastNormal) {
+                        rgb = lastColor;
+                    } else {
+                        lastMaterial = buffer.material[i];
+                        lastNormal = buffer.normal[i];
+                        lastColor = phong(colors[lastMaterial], lastNormal);
+                        rgb = lastColor;
+                    }
+                    rb += rgb & 0x00FF00FF;
+                    g += rgb & 0x0000FF00;
+                }
+                pixels[dst + x] = 0xFF000000 | ((rb + half * 0x00010001) >>> shift) & 0x00FF00FF
+                        | ((g + (half << 8)) >>> shift) & 0x0000FF00;
+            }
+        }
+    }
+
+    private static boolean allEqual(int[] values, int from, int count) {
+        for (int i = from + 1; i < from + count; i++) {
+            if (values[i] != values[from]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Растеризация треугольника t в пределах тайла через функции рёбер. Вершины уже
+     * в фиксированной точке с SUBPIXEL_BITS битами дробной части, дальше значения функций
+     * рёбер, глубины и освещения при шаге на пиксель меняются только прибавлением шага.
+     * Пиксели ровно на ребре закрашиваются по правилу "верхнее-левое", поэтому у
+     * соседних треугольников общие пиксели не рисуются дважды и не теряются.
+     * При отложенном освещении вместо цвета интерполируется нормаль и пишется в G-буфер
+     * вместе с номером треугольника, цвет которого служит материалом.
+     * При мультисэмплинге функции рёбер и глубина проверяются в каждом отсчёте (к значению
+     * в точке пикселя прибавляется постоянная для треугольника поправка), а цвет или
+     * нормаль считаются один раз на пиксель и пишутся во все прошедшие тест отсчёты.
+     */
+    private void rasterizeTriangle(int t, TileBuffer buffer, int originX, int originY,
+                                   int tileWidth, int tileHeight) {
+        int minX = Math.max(bounds[4 * t], originX);
+        int maxX = Math.min(bounds[4 * t + 1], originX + tileWidth - 1);
+        int minY = Math.max(bounds[4 * t + 2], originY);
+        int maxY = Math.min(bounds[4 * t + 3], originY + tileHeight - 1);
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+
+        int f = 6 * t;
+        long x0 = fixedXY[f];
+        long y0 = fixedXY[f + 1];
+        long x1 = fixedXY[f + 2];
+        long y1 = fixedXY[f + 3];
+        long x2 = fixedXY[f + 4];
+        long y2 = fixedXY[f + 5];
+        double z0 = attributes[f];
+        double z1 = attributes[f + 1];
+        double z2 = attributes[f + 2];
+        double i0 = attributes[f + 3];
+        double i1 = attributes[f + 4];
+        double i2 = attributes[f + 5];
+        int rgb = colors[t];
+
+        // Правило "верхнее-левое": на остальных рёбрах пиксель, лежащий точно на ребре, не закрашиваем
+        long bias0 = isTopLeft(x1, y1, x2, y2) ? 0 : -1;
+        long bias1 = isTopLeft(x2, y2, x0, y0) ? 0 : -1;
+        long bias2 = isTopLeft(x0, y0, x1, y1) ? 0 : -1;
+
+        // Приращения функций рёбер при шаге на пиксель вправо и вниз
+        long stepX0 = (y1 - y2) * SUBPIXEL_ONE;
+        long stepX1 = (y2 - y0) * SUBPIXEL_ONE;
+        long stepX2 = (y0 - y1) * SUBPIXEL_ONE;
+        long stepY0 = (x2 - x1) * SUBPIXEL_ONE;
+        long stepY1 = (x0 - x2) * SUBPIXEL_ONE;
+        long stepY2 = (x1 - x0) * SUBPIXEL_ONE;
+
+        // Глубина и освещение линейны на экране, их шаг по x постоянен
+        double invArea = 1.0 / edge(x0, y0, x1, y1, x2, y2);
+        double dzdx = (z0 * stepX0 + z1 * stepX1 + z2 * stepX2) * invArea;
+        double didx = (i0 * stepX0 + i1 * stepX1 + i2 * stepX2) * invArea;
+        boolean deferred = shading == Shading.DEFERRED_PHONG;
+        int n = 9 * t;
+        double ax = 0, ay = 0, az = 0, bx = 0, by = 0, bz = 0, cx = 0, cy = 0, cz = 0;
+        double dnxdx = 0, dnydx = 0, dnzdx = 0;
+        if (deferred) {
+            ax = normals[n];
+            ay = normals[n + 1];
+            az = normals[n + 2];
+            bx = normals[n + 3];
+            by = normals[n + 4];
+            bz = normals[n + 5];
+            cx = normals[n + 6];
+            cy = normals[n + 7];
+            cz = normals[n + 8];
+            dnxdx = (ax * stepX0 + bx * stepX1 + cx * stepX2) * invArea;
+            dnydx = (ay * stepX0 + by * stepX1 + cy * stepX2) * invArea;
+            dnzdx = (az * stepX0 + bz * stepX1 + cz * stepX2) * invArea;
+        }
+
+        long px = (long) minX << SUBPIXEL_BITS;
+        long py = (long) minY << SUBPIXEL_BITS;
+        long row0 = edge(x1, y1, x2, y2, px, py) + bias0;
+        long row1 = edge(x2, y2, x0, y0, px, py) + bias1;
+        long row2 = edge(x0, y0, x1, y1, px, py) + bias2;
+
+        // Поправки функций рёбер и глубины от точки пикселя к каждому отсчёту и наибольшие
+        // из поправок рёбер: если и с ней функция ребра отрицательна, ни один отсчёт не покрыт
+        int samples = buffer.samples;
+        long[] sampleEdges = buffer.sampleEdges;
+        double[] sampleDepths = buffer.sampleDepths;
+        long reach0 = 0;
+        long reach1 = 0;
+        long reach2 = 0;
+        // Наименьшие поправки: если и с ними все функции рёбер >= 0, покрыты все отсчёты
+        long inner0 = 0;
+        long inner1 = 0;
+        long inner2 = 0;
+        if (samples > 1) {
+            double dzdy = (z0 * stepY0 + z1 * stepY1 + z2 * stepY2) * invArea;
+            int[] offsets = multisampling.offsets;
+            reach0 = reach1 = reach2 = Long.MIN_VALUE;
+            inner0 = inner1 = inner2 = Long.MAX_VALUE;
+            for (int s = 0; s < samples; s++) {
+                int ox = offsets[2 * s];
+                int oy = offsets[2 * s + 1];
+                // Шаги посчитаны на целый пиксель, то есть умножены на SUBPIXEL_ONE
+                sampleEdges[3 * s] = (stepX0 * ox + stepY0 * oy) >> SUBPIXEL_BITS;
+                sampleEdges[3 * s + 1] = (stepX1 * ox + stepY1 * oy) >> SUBPIXEL_BITS;
+                sampleEdges[3 * s + 2] = (stepX2 * ox + stepY2 * oy) >> SUBPIXEL_BITS;
+                sampleDepths[s] = (dzdx * ox + dzdy * oy) / SUBPIXEL_ONE;
+                reach0 = Math.max(reach0, sampleEdges[3 * s]);
+                reach1 = Math.max(reach1, sampleEdges[3 * s + 1]);
+                reach2 = Math.max(reach2, sampleEdges[3 * s + 2]);
+                inner0 = Math.min(inner0, sampleEdges[3 * s]);
+                inner1 = Math.min(inner1, sampleEdges[3 * s + 1]);
+                inner2 = Math.min(inner2, sampleEdges[3 * s + 2]);
+            }
+        }
+
+        // Прямоугольник тайла целиком снаружи какого-то ребра — треугольник попал сюда
+        // только ограничивающим прямоугольником, пиксели можно не перебирать
+        long spanX = maxX - minX;
+        long spanY = maxY - minY;
+        if (row0 + reach0 + Math.max(0, stepX0 * spanX) + Math.max(0, stepY0 * spanY) < 0
+                || row1 + reach1 + Math.max(0, stepX1 * spanX) + Math.max(0, stepY1 * spanY) < 0
+                || row2 + reach2 + Math.max(0, stepX2 * spanX) + Math.max(0, stepY2 * spanY) < 0) {
+            return;
+        }
+
+        float[] depthBuffer = buffer.depth;
+        int[] stamp = buffer.stamp;
+        int[] color = buffer.color;
+        int[] normal = buffer.normal;
+        int[] material = buffer.material;
+        int[] uncovered = buffer.uncovered;
+        int generation = buffer.generation;
+
+        for (int y = minY; y <= maxY; y++) {
+            long w0 = row0;
+            long w1 = row1;
+            long w2 = row2;
+            // В начале строки значения считаем точно, чтобы ошибка шагов не копилась
+            double e0 = (double) (w0 - bias0);
+            double e1 = (double) (w1 - bias1);
+            double e2 = (double) (w2 - bias2);
+            double z = (e0 * z0 + e1 * z1 + e2 * z2) * invArea;
+            int index = (y - originY) * TILE_SIZE + (minX - originX);
+            int blockRow = (y - originY) / HIZ_BLOCK * HIZ_BLOCKS;
+            boolean covered = false;
+
+            if (samples > 1) {
+                double intensity = (e0 * i0 + e1 * i1 + e2 * i2) * invArea;
+                double nx = (e0 * ax + e1 * bx + e2 * cx) * invArea;
+                double ny = (e0 * ay + e1 * by + e2 * cy) * invArea;
+                double nz = (e0 * az + e1 * bz + e2 * cz) * invArea;
+                for (int x = minX; x <= maxX; x++, index++) {
+                    long max0 = w0 + reach0;
+                    long max1 = w1 + reach1;
+                    long max2 = w2 + reach2;
+                    if ((max0 | max1 | max2) < 0) {
+                        // Ни один отсчёт не покрыт; если ребро, снаружи которого пиксель,
+                        // при шаге вправо не приближается, дальше в строке покрытых нет
+                        if ((max0 < 0 && stepX0 <= 0) || (max1 < 0 && stepX1 <= 0) || (max2 < 0 && stepX2 <= 0)) {
+                            break;
+                        }
+                    } else {
+                        // Цвет или нормаль считаются один раз на пиксель, когда первый отсчёт пройдёт тест глубины
+                        int value = 0;
+                        boolean shaded = false;
+                        int block = blockRow + (x - originX) / HIZ_BLOCK;
+                        // Внутри треугольника покрыты все отсчёты, рёбра можно не проверять
+                        boolean inside = (w0 + inner0 | w1 + inner1 | w2 + inner2) >= 0;
+                        int i = index * samples;
+                        if (stamp[index] != generation) {
+                            // Первое касание пикселя в этом тайле: все его отсчёты пусты
+                            stamp[index] = generation;
+                            Arrays.fill(depthBuffer, i, i + samples, Float.POSITIVE_INFINITY);
+                            Arrays.fill(deferred ? material : color, i, i + samples, deferred ? -1 : BACKGROUND);
+                        }
+                        for (int s = 0; s < samples; s++, i++) {
+                            if (!inside && (w0 + sampleEdges[3 * s] | w1 + sampleEdges[3 * s + 1]
+                                    | w2 + sampleEdges[3 * s + 2]) < 0) {
+                                continue;
+                            }
+                            float depth = (float) (z + sampleDepths[s]);
+                            float old = depthBuffer[i];
+                            if (depth < old) {
+                                if (old == Float.POSITIVE_INFINITY) {
+                                    uncovered[block]--;
+                                }
+                                if (!shaded) {
+                                    value = deferred ? packNormal(nx, ny, nz) : shade(rgb, intensity);
+                                    shaded = true;
+                                }
+                                depthBuffer[i] = depth;
+                                if (deferred) {
+                                    normal[i] = value;
+                                    material[i] = t;
+                                } else {
+                                    color[i] = value;
+                                }
+                            }
+                        }
+                    }
+                    w0 += stepX0;
+                    w1 += stepX1;
+                    w2 += stepX2;
+                    z += dzdx;
+                    intensity += didx;
+                    nx += dnxdx;
+                    ny += dnydx;
+                    nz += dnzdx;
+                }
+                row0 += stepY0;
+                row1 += stepY1;
+                row2 += stepY2;
+                continue;
+            }
+
+            if (deferred) {
+                double nx = (e0 * ax + e1 * bx + e2 * cx) * invArea;
+                double ny = (e0 * ay + e1 * by + e2 * cy) * invArea;
+                double nz = (e0 * az + e1 * bz + e2 * cz) * invArea;
+                for (int x = minX; x <= maxX; x++, index++) {
+                    if ((w0 | w1 | w2) >= 0) {
+                        covered = true;
+                        float depth = (float) z;
+                        boolean first = stamp[index] != generation;
+                        if (first || depth < depthBuffer[index]) {
+                            if (first) {
+                                stamp[index] = generation;
+                                uncovered[blockRow + (x - originX) / HIZ_BLOCK]--;
+                            }
+                            depthBuffer[index] = depth;
+                            normal[index] = packNormal(nx, ny, nz);
+                            material[index] = t;
+                        }
+                    } else if (covered) {
+                        break;
+                    }
+                    w0 += stepX0;
+                    w1 += stepX1;
+                    w2 += stepX2;
+                    z += dzdx;
+                    nx += dnxdx;
+                    ny += dnydx;
+                    nz += dnzdx;
+                }
+                row0 += stepY0;
+                row1 += stepY1;
+                row2 += stepY2;
+                continue;
+            }
+
+            double intensity = (e0 * i0 + e1 * i1 + e2 * i2) * invArea;
+            for (int x = minX; x <= maxX; x++, index++) {
+                if ((w0 | w1 | w2) >= 0) {
+                    covered = true;
+                    float depth = (float) z;
+                    if (stamp[index] != generation) {
+                        stamp[index] = generation;
+                        uncovered[blockRow + (x - originX) / HIZ_BLOCK]--;
+                        depthBuffer[index] = depth;
+                        color[index] = shade(rgb, intensity);
+                    } else if (depth < depthBuffer[index]) {
+                        depthBuffer[index] = depth;
+                        color[index] = shade(rgb, intensity);
+                    }
+                } else if (covered) {
+                    break; // треугольник выпуклый: дальше в этой строке он не встретится
+                }
+                w0 += stepX0;
+                w1 += stepX1;
+                w2 += stepX2;
+                z += dzdx;
+                intensity += didx;
+            }
+
+            row0 += stepY0;
+            row1 += stepY1;
+            row2 += stepY2;
+        }
+    }
+
+    /** Нормаль в G-буфере: три компоненты по 10 бит со знаком в одном int. */
+    private static int packNormal(double nx, double ny, double nz) {
+        return quantize(nx) << 20 | quantize(ny) << 10 | quantize(nz);
+    }
+
+    /** Компонента из [-1, 1] (нормаль внутри треугольника — выпуклая комбинация единичных) в 10 бит. */
+    private static int quantize(double value) {
+        // Зажимаем: при мультисэмплинге нормаль берётся в точке пикселя, которая бывает чуть снаружи
+        value = Math.max(-1, Math.min(1, value));
+        return ((int) (value * 511 + 512.5) - 512) & 0x3FF;
+    }
+
+    /**
+     * Освещение по Фонгу для пикселя с цветом rgb и упакованной нормалью. Нормали у нас
+     * в тех же знаках, что и в calculateLightIntensity, а зритель смотрит вдоль оси z,
+     * поэтому косинус между отражённым светом и направлением на зрителя — это z-компонента
+     * отражения 2 (n·l) n - l.
+     */
+    private int phong(int rgb, int packedNormal) {
+        double nx = (packedNormal << 2) >> 22;
+        double ny = (packedNormal << 12) >> 22;
+        double nz = (packedNormal << 22) >> 22;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            return shade(rgb, AMBIENT);
+        }
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double dot = nx * lightDirection.x + ny * lightDirection.y + nz * lightDirection.z;
+        double diffuse = Math.max(AMBIENT, dot);
+
+        double highlight = 0;
+        double reflected = 2 * dot * nz - lightDirection.z;
+        if (dot > 0 && reflected > 0) {
+            highlight = reflected;
+            for (int k = 0; k < SHININESS_SQUARINGS; k++) {
+                highlight *= highlight;
+            }
+            highlight *= SPECULAR * 255;
+        }
+        int r = Math.min(255, (int) (((rgb >> 16) & 0xFF) * diffuse + highlight));
+        int g = Math.min(255, (int) (((rgb >> 8) & 0xFF) * diffuse + highlight));
+        int b = Math.min(255, (int) ((rgb & 0xFF) * diffuse + highlight));
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    /** Функция ребра a -> b в точке p: положительна по одну сторону ребра, отрицательна по другую. */
+    private static long edge(long ax, long ay, long bx, long by, long px, long py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    /** Верхнее (горизонтальное, идёт вправо) или левое (идёт вверх) ребро при нашем обходе. */
+    private static boolean isTopLeft(long ax, long ay, long bx, long by) {
+        return (ay == by && bx > ax) || by < ay;
+    }
+
+    /**
+     * Буферы цвета и глубины одного тайла. Глубина действительна, только если метка
+     * пикселя равна generation, поэтому очистка перед новым тайлом — это generation++.
+     * При мультисэмплинге глубина, цвет и G-буфер хранятся по отсчётам: отсчёт s пикселя
+     * index лежит в ячейке index * samples + s. Метка остаётся у пикселя, при первом
+     * касании его отсчёты заполняются пустыми значениями (глубина +∞, фон).
+     *
+     * Поверх глубины — иерархический z-буфер по блокам HIZ_BLOCK x HIZ_BLOCK: сколько
+     * пикселей блока ещё не закрашено и верхняя граница глубины в блоке. Глубина пикселей
+     * только уменьшается, поэтому устаревшая граница остаётся верной, а точной она
+     * становится после пересчёта блока, когда её не хватило для отбрасывания.
+     */
+    private static final class TileBuffer {
+        float[] depth = new float[TILE_SIZE * TILE_SIZE];
+        final int[] stamp = new int[TILE_SIZE * TILE_SIZE];
+        int[] color = new int[TILE_SIZE * TILE_SIZE];
+        // G-буфер отложенного освещения: упакованная нормаль и номер треугольника
+        int[] normal = new int[TILE_SIZE * TILE_SIZE];
+        int[] material = new int[TILE_SIZE * TILE_SIZE];
+        // Сколько отсчётов (не пикселей) блока ещё не закрашено
+        final int[] uncovered = new int[HIZ_BLOCKS * HIZ_BLOCKS];
+        final float[] blockMax = new float[HIZ_BLOCKS * HIZ_BLOCKS];
+        final boolean[] blockDirty = new boolean[HIZ_BLOCKS * HIZ_BLOCKS];
+        // Поправки к функциям рёбер и глубине для отсчётов текущего треугольника
+        final long[] sampleEdges = new long[3 * Multisampling.MSAA_8X.samples];
+        final double[] sampleDepths = new double[Multisampling.MSAA_8X.samples];
+        int samples = 1;
+        int generation;
+
+        void clear(int tileWidth, int tileHeight, int samples) {
+            if (samples != this.samples) {
+                // Поменялось число отсчётов: буферы другого размера, метки от прошлых
+                // тайлов меньше новой generation и остаются верными
+                int size = TILE_SIZE * TILE_SIZE * samples;
+                depth = new float[size];
+                color = new int[size];
+                normal = new int[size];
+                material = new int[size];
+                this.samples = samples;
+            }
+            generation++;
+            if (generation == 0) {
+                // Счётчик переполнился: сбрасываем метки, чтобы старые не совпали с новыми
+                Arrays.fill(stamp, 0);
+                generation = 1;
+            }
+            for (int by = 0; by < HIZ_BLOCKS; by++) {
+                int rows = Math.max(0, Math.min(HIZ_BLOCK, tileHeight - by * HIZ_BLOCK));
+                for (int bx = 0; bx < HIZ_BLOCKS; bx++) {
+                    int columns = Math.max(0, Math.min(HIZ_BLOCK, tileWidth - bx * HIZ_BLOCK));
+                    uncovered[by * HIZ_BLOCKS + bx] = rows * columns * samples;
+                }
+            }
+            Arrays.fill(blockMax, Float.POSITIVE_INFINITY);
+            Arrays.fill(blockDirty, false);
+        }
+
+        /**
+         * Треугольник с глубиной не меньше minDepth в прямоугольнике [minX, maxX] x [minY, maxY]
+         * (координаты в тайле) заведомо не пройдёт тест глубины: все задетые блоки
+         * закрашены целиком и лежат ближе.
+         */
+        boolean occluded(float minDepth, int minX, int maxX, int minY, int maxY) {
+            for (int by = minY / HIZ_BLOCK; by <= maxY / HIZ_BLOCK; by++) {
+                for (int bx = minX / HIZ_BLOCK; bx <= maxX / HIZ_BLOCK; bx++) {
+                    int block = by * HIZ_BLOCKS + bx;
+                    if (uncovered[block] > 0) {
+                        return false;
+                    }
+                    if (minDepth <= blockMax[block]) {
+                        if (!blockDirty[block]) {
+                            return false;
+                        }
+                        updateBlock(bx, by);
+                        if (minDepth <= blockMax[block]) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        void markDirty(int minX, int maxX, int minY, int maxY) {
+            for (int by = minY / HIZ_BLOCK; by <= maxY / HIZ_BLOCK; by++) {
+                for (int bx = minX / HIZ_BLOCK; bx <= maxX / HIZ_BLOCK; bx++) {
+                    blockDirty[by * HIZ_BLOCKS + bx] = true;
+                }
+            }
+        }
+
+        /** Пересчитывает верхнюю границу глубины закрашенного целиком блока. */
+        private void updateBlock(int bx, int by) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int y = 0; y < HIZ_BLOCK; y++) {
+                int index = ((by * HIZ_BLOCK + y) * TILE_SIZE + bx * HIZ_BLOCK) * samples;
+                for (int i = 0; i < HIZ_BLOCK * samples; i++) {
+                    max = Math.max(max, depth[index + i]);
+                }
+            }
+            blockMax[by * HIZ_BLOCKS + bx] = max;
+            blockDirty[by * HIZ_BLOCKS + bx] = false;
+        }
+    }
+
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    /** Выполняет range на [from, to): параллельно кусками не меньше grain или в текущем потоке. */
+    private void runRange(int from, int to, int grain, Range range) {
+        if (pool == null) {
+            range.run(from, to);
+        } else {
+            pool.invoke(new RangeTask(from, to, grain, range));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RangeTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final Range range;
+
+        RangeTask(int from, int to, int grain, Range range) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.range = range;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, mid, grain, range), new RangeTask(mid, to, grain, range));
+                return;
+            }
+            range.run(from, to);
+        }
+    }
+
+    private double calculateLightIntensity(double nx, double ny, double nz) {
+        // Скалярное произведение нормали и направления света (то же самое что угол между ними на модули векторов)
+        double dot = nx * lightDirection.x +
+                ny * lightDirection.y +
+                nz * lightDirection.z;
+
+        // Ограничиваем значение от 0.2 до 1.0 для избежания полной темноты
+        return Math.max(0.2, dot);
+    }
+
+    /** Цвет rgb с учётом интенсивности освещения, упакованный в ARGB. */
+    private static int shade(int rgb, double intensity) {
+        int r = Math.min(255, Math.max(0, (int) (((rgb >> 16) & 0xFF) * intensity)));
+        int g = Math.min(255, Math.max(0, (int) (((rgb >> 8) & 0xFF) * intensity)));
+        int b = Math.min(255, Math.max(0, (int) ((rgb & 0xFF) * intensity)));
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        long start = System.nanoTime();
+        synchronized (presentLock) {
+            g.drawImage(image, 0, 0, this);
+        }
+        timings.recordPresent(System.nanoTime() - start);
+        if (OVERLAY) {
+            String text = timings.summary();
+            g.setColor(new Color(0, 0, 0, 160));
+            g.fillRect(4, 4, g.getFontMetrics().stringWidth(text) + 8, g.getFontMetrics().getHeight() + 4);
+            g.setColor(Color.WHITE);
+            g.drawString(text, 8, 6 + g.getFontMetrics().getAscent());
+        }
+    }
+}
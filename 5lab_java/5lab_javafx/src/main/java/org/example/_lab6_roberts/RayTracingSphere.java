@@ -4,21 +4,50 @@ import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class RayTracingSphere extends Application {
     private static final int WIDTH = 800;
     private static final int HEIGHT = 800;
     private static final double FOV = Math.PI / 2;
     private static final double ASPECT_RATIO = (double) WIDTH / HEIGHT;
+    private static final double TAN_HALF_FOV = Math.tan(FOV / 2);
     private static final Color BACKGROUND = Color.BLACK;
+    private static final int BACKGROUND_ARGB =
+            argb(BACKGROUND.getRed(), BACKGROUND.getGreen(), BACKGROUND.getBlue());
+    // Кадр делится на тайлы TILE_SIZE x TILE_SIZE, каждый трассируется независимо
+    private static final int TILE_SIZE = 16;
+    private static final int TILES_X = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+    private static final int TILES_Y = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+    // Если лучи тайла задевают не больше стольких сфер, каждый луч проверяется с ними
+    // напрямую, иначе идёт обход иерархии
+    private static final int TILE_LIST_SIZE = 32;
+    private static final int PARALLELISM = Integer.getInteger("raytracer.threads",
+            Runtime.getRuntime().availableProcessors());
+    // Интервал между пульсами JavaFX, пока он не измерен
+    private static final long DEFAULT_PULSE_NANOS = 1_000_000_000L / 60;
+    // Запас к оценке времени трассировки, с которым кадр начинают считать до его пульса
+    private static final long SCHEDULE_MARGIN_NANOS = Long.getLong("raytracer.marginMs", 4) * 1_000_000L;
+    // Направление на источник света, нормированное (1, 1, -1)
+    private static final double LIGHT_X = 1 / Math.sqrt(3);
+    private static final double LIGHT_Y = 1 / Math.sqrt(3);
+    private static final double LIGHT_Z = -1 / Math.sqrt(3);
 
     class Sphere {
         double[] center = new double[3];
@@ -33,7 +62,51 @@ public class RayTracingSphere extends Application {
     }
 
     private List<Sphere> spheres = new ArrayList<>();
-    private double[][] zBuffer = new double[WIDTH][HEIGHT];
+    // Камера неподвижна в начале координат, поэтому направления первичных лучей
+    // считаются один раз: по три числа (единичный вектор) на пиксель, строка за строкой
+    private final double[] rayDirections = primaryRays();
+    // Сферы на кадр в исходном порядке: центры (по три числа), радиусы и цвета (r, g, b)
+    private double[] centers = new double[0];
+    private double[] radii = new double[0];
+    private double[] colors = new double[0];
+    // Иерархия над сферами: подгоняется каждый кадр, перестраивается, когда качество падает
+    private SphereBvh bvh;
+
+    // Кадр, в который сейчас трассируют тайлы (пишут в него параллельно)
+    private int[] pixels;
+    // pool == null — всё считается в потоке отрисовки
+    private final ForkJoinPool pool = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+    // У каждого потока свои рабочие массивы трассировки тайла, чтобы не заводить их на каждый тайл
+    private final ThreadLocal<TileScratch> tileScratch = ThreadLocal.withInitial(TileScratch::new);
+
+    // Двойная буферизация: пока кадр из одного буфера выводится, в другой трассируется следующий.
+    // Готовый кадр ждёт пульса в ready, выведенный возвращается потоку отрисовки через free
+    private final AtomicReference<Frame> ready = new AtomicReference<>();
+    private final AtomicReference<Frame> free = new AtomicReference<>();
+    private final FrameStats stats = new FrameStats();
+    private Thread renderThread;
+    private long startTime;
+    // Время последнего пульса и сглаженный интервал между пульсами (пишет поток JavaFX)
+    private volatile long lastPulse;
+    private volatile long pulseInterval = DEFAULT_PULSE_NANOS;
+    // Сглаженное время трассировки кадра, только для потока отрисовки
+    private double renderEstimate;
+
+    /** Буфер кадра и момент, для которого он посчитан. */
+    private static final class Frame {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        final IntBuffer buffer = IntBuffer.wrap(pixels);
+        long targetNanos;
+        long startNanos;
+    }
+
+    /** Список сфер тайла, стеки обхода иерархии и ячейка для расстояния до попадания. */
+    private static final class TileScratch {
+        final int[] list = new int[TILE_LIST_SIZE];
+        final int[] stack = new int[SphereBvh.STACK_SIZE];
+        final double[] stackT = new double[SphereBvh.STACK_SIZE];
+        final double[] hit = new double[1];
+    }
 
     public static void main(String[] args) {
         launch(args);
@@ -41,10 +114,15 @@ public class RayTracingSphere extends Application {
 
     @Override
     public void start(Stage primaryStage) {
-        // Инициализация сфер
-        spheres.add(new Sphere(0, 0, -2, 0.5, Color.RED, 0.5, 0.3));
-        spheres.add(new Sphere(1, 0, -3, 0.4, Color.BLUE, 0.3, 0.4));
-        spheres.add(new Sphere(-1, 0, -4, 0.6, Color.GREEN, 0.4, 0.5));
+        // Инициализация сфер; с --spheres N вместо трёх сфер — N маленьких случайных
+        List<String> args = getParameters().getRaw();
+        if (args.size() > 1 && args.get(0).equals("--spheres")) {
+            addRandomSpheres(Integer.parseInt(args.get(1)));
+        } else {
+            spheres.add(new Sphere(0, 0, -2, 0.5, Color.RED, 0.5, 0.3));
+            spheres.add(new Sphere(1, 0, -3, 0.4, Color.BLUE, 0.3, 0.4));
+            spheres.add(new Sphere(-1, 0, -4, 0.6, Color.GREEN, 0.4, 0.5));
+        }
 
         WritableImage image = new WritableImage(WIDTH, HEIGHT);
         ImageView imageView = new ImageView(image);
@@ -55,18 +133,116 @@ public class RayTracingSphere extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
 
+        startTime = System.nanoTime();
+        free.set(new Frame());
+        renderThread = new Thread(() -> renderLoop(new Frame()), "raytracer-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+
         new AnimationTimer() {
-            private long startTime = System.nanoTime();
+            private long lastTitle;
 
             @Override
             public void handle(long now) {
-                double time = (now - startTime) / 1_000_000_000.0;
-                updateSpheres(time);
-                renderFrame(image.getPixelWriter());
+                present(now, image.getPixelWriter());
+                if (now - lastTitle > 1_000_000_000L) {
+                    lastTitle = now;
+                    primaryStage.setTitle(" Сферы трассировка лучей — " + stats.summary());
+                }
             }
         }.start();
     }
 
+    /**
+     * Поток отрисовки: берёт свободный буфер, выбирает пульс, к которому кадр успеет,
+     * и трассирует сцену на момент этого пульса. Если прошлый готовый кадр так и не
+     * был выведен, он выбрасывается и его буфер идёт под следующий кадр.
+     */
+    private void renderLoop(Frame frame) {
+        long previousTarget = 0;
+        while (true) {
+            // Начинаем как можно позже, чтобы сцена соответствовала моменту вывода
+            long target = nextTarget(previousTarget);
+            previousTarget = target;
+            long begin = target - (long) renderEstimate - SCHEDULE_MARGIN_NANOS;
+            long wait;
+            while ((wait = begin - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            long start = System.nanoTime();
+            updateSpheres((target - startTime) / 1_000_000_000.0);
+            renderFrame(frame);
+            long duration = System.nanoTime() - start;
+            renderEstimate = renderEstimate == 0 ? duration : renderEstimate + 0.1 * (duration - renderEstimate);
+            frame.targetNanos = target;
+            frame.startNanos = start;
+
+            Frame dropped = ready.getAndSet(frame);
+            if (dropped != null) {
+                stats.recordDropped();
+                frame = dropped;
+                continue;
+            }
+            // Второй буфер у потока JavaFX: ждём, пока он выведет кадр и вернёт его
+            while ((frame = free.getAndSet(null)) == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ближайший будущий пульс, к которому кадр успеет при текущей оценке времени трассировки
+     * и который позже пульса прошлого кадра (на один пульс — один новый кадр).
+     */
+    private long nextTarget(long previousTarget) {
+        long now = System.nanoTime();
+        long interval = pulseInterval;
+        long pulse = lastPulse;
+        long earliest = Math.max(now + (long) renderEstimate + SCHEDULE_MARGIN_NANOS,
+                previousTarget + interval / 2);
+        if (pulse == 0) {
+            return earliest;
+        }
+        long pulses = Math.max(1, (earliest - pulse + interval - 1) / interval);
+        return pulse + pulses * interval;
+    }
+
+    /** Вызывается на каждом пульсе: выводит готовый кадр, если он есть, и возвращает буфер. */
+    private void present(long now, PixelWriter pw) {
+        long previous = lastPulse;
+        if (previous != 0) {
+            long interval = now - previous;
+            pulseInterval = (long) (pulseInterval + 0.1 * (interval - pulseInterval));
+        }
+        lastPulse = now;
+
+        Frame frame = ready.getAndSet(null);
+        if (frame == null) {
+            stats.recordRepeated();
+            return;
+        }
+        pw.setPixels(0, 0, WIDTH, HEIGHT, PixelFormat.getIntArgbPreInstance(), frame.buffer, WIDTH);
+        stats.recordPresented(now - frame.startNanos, now - frame.targetNanos, pulseInterval);
+        free.set(frame);
+        LockSupport.unpark(renderThread);
+    }
+
+    /** Облако из count сфер случайного размера, глубины, цвета и скорости. */
+    private void addRandomSpheres(int count) {
+        Random random = new Random(5);
+        for (int i = 0; i < count; i++) {
+            double z = -2 - random.nextDouble() * 10;
+            double radius = 0.01 + random.nextDouble() * 0.03;
+            Color color = Color.hsb(random.nextDouble() * 360, 0.8, 1);
+            spheres.add(new Sphere(0, 0, z, radius, color,
+                    0.1 + random.nextDouble() * 0.6, 0.1 + random.nextDouble() * 0.6));
+        }
+    }
+
     private void updateSpheres(double time) {
         for (Sphere sphere : spheres) {
             sphere.center[0] = Math.sin(time * sphere.speedX);
@@ -74,81 +250,207 @@ public class RayTracingSphere extends Application {
         }
     }
 
-    private void renderFrame(PixelWriter pw) {
-        // Очистка Z-буфера
-        for (int x = 0; x < WIDTH; x++) {
-            for (int y = 0; y < HEIGHT; y++) {
-                zBuffer[x][y] = Double.POSITIVE_INFINITY;
-                pw.setColor(x, y, BACKGROUND);
+    private static double[] primaryRays() {
+        double scale = TAN_HALF_FOV;
+        double[] dirs = new double[3 * WIDTH * HEIGHT];
+        int i = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            double py = (1 - 2 * (y + 0.5) / HEIGHT) * scale;
+            for (int x = 0; x < WIDTH; x++) {
+                double px = (2 * (x + 0.5) / WIDTH - 1) * scale * ASPECT_RATIO;
+                double len = Math.sqrt(px * px + py * py + 1);
+                dirs[i++] = px / len;
+                dirs[i++] = py / len;
+                dirs[i++] = -1 / len;
             }
         }
+        return dirs;
+    }
 
-        double[] cameraPos = {0, 0, 0};
+    private void renderFrame(Frame frame) {
+        pixels = frame.pixels;
+        int count = spheres.size();
+        if (radii.length != count) {
+            centers = new double[3 * count];
+            radii = new double[count];
+            colors = new double[3 * count];
+        }
+        for (int i = 0; i < count; i++) {
+            Sphere sphere = spheres.get(i);
+            centers[3 * i] = sphere.center[0];
+            centers[3 * i + 1] = sphere.center[1];
+            centers[3 * i + 2] = sphere.center[2];
+            radii[i] = sphere.radius;
+            colors[3 * i] = sphere.color.getRed();
+            colors[3 * i + 1] = sphere.color.getGreen();
+            colors[3 * i + 2] = sphere.color.getBlue();
+        }
+        if (bvh == null || bvh.size() != count) {
+            bvh = new SphereBvh(centers, radii);
+        } else {
+            bvh.refit(centers, radii);
+            if (bvh.needsRebuild()) {
+                bvh.rebuild(centers, radii);
+                stats.recordRebuild();
+            }
+        }
 
-        // Рендеринг сфер с учетом Z-буфера
-        for (Sphere sphere : spheres) {
-            for (int y = 0; y < HEIGHT; y++) {
-                for (int x = 0; x < WIDTH; x++) {
-                    double px = (2 * (x + 0.5) / WIDTH - 1) * Math.tan(FOV / 2) * ASPECT_RATIO;
-                    double py = (1 - 2 * (y + 0.5) / HEIGHT) * Math.tan(FOV / 2);
-                    double[] rayDir = normalize(new double[]{px, py, -1});
-
-                    double t = intersectSphere(cameraPos, rayDir, sphere);
-                    if (t > 0 && t < zBuffer[x][y]) {
-                        zBuffer[x][y] = t;
-                        double[] point = add(cameraPos, multiply(rayDir, t));
-                        double[] normal = normalize(subtract(point, sphere.center));
-                        double[] lightDir = normalize(new double[]{1, 1, -1});
-                        double diffuse = Math.max(0, dot(normal, lightDir));
-                        double brightness = 0.2 + 0.8 * diffuse;
-                        pw.setColor(x, y, adjustColor(sphere.color, brightness));
-                    }
-                }
+        if (pool == null) {
+            for (int tile = 0; tile < TILES_X * TILES_Y; tile++) {
+                traceTile(tile);
             }
+        } else {
+            pool.invoke(new TileTask(0, TILES_X * TILES_Y));
         }
     }
 
-    private double intersectSphere(double[] origin, double[] dir, Sphere sphere) {
-        double[] oc = subtract(origin, sphere.center);
-        double a = dot(dir, dir);
-        double b = 2 * dot(oc, dir);
-        double c = dot(oc, oc) - sphere.radius * sphere.radius;
-        double discriminant = b * b - 4 * a * c;
-        return discriminant < 0 ? -1 : (-b - Math.sqrt(discriminant)) / (2 * a);
-    }
+    /**
+     * Заливает тайл фоном и трассирует его лучи. Сначала иерархия обходится один раз
+     * для всей пирамиды лучей тайла: если в неё не попадает ни одна сфера, тайл так и
+     * остаётся фоном, если попадает несколько — лучи проверяются только с ними. Иначе
+     * каждый луч обходит иерархию от узла, ниже которого лежит всё, что задевает пирамиду.
+     */
+    private void traceTile(int tile) {
+        int x0 = (tile % TILES_X) * TILE_SIZE;
+        int y0 = (tile / TILES_X) * TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, WIDTH);
+        int y1 = Math.min(y0 + TILE_SIZE, HEIGHT);
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(pixels, y * WIDTH + x0, y * WIDTH + x1, BACKGROUND_ARGB);
+        }
 
-    // Векторные операции
-    private static double[] normalize(double[] v) {
-        double len = Math.sqrt(v[0]*v[0] + v[1]*v[1] + v[2]*v[2]);
-        return new double[]{v[0]/len, v[1]/len, v[2]/len};
-    }
+        // Наклоны лучей через центры крайних пикселей тайла, с запасом на округление
+        double xScale = 2 * TAN_HALF_FOV * ASPECT_RATIO / WIDTH;
+        double yScale = 2 * TAN_HALF_FOV / HEIGHT;
+        double xMin = (x0 + 0.5) * xScale - TAN_HALF_FOV * ASPECT_RATIO - 1e-9;
+        double xMax = (x1 - 0.5) * xScale - TAN_HALF_FOV * ASPECT_RATIO + 1e-9;
+        double yMin = TAN_HALF_FOV - (y1 - 0.5) * yScale - 1e-9;
+        double yMax = TAN_HALF_FOV - (y0 + 0.5) * yScale + 1e-9;
+        SphereBvh tree = bvh;
+        TileScratch scratch = tileScratch.get();
+        int[] list = scratch.list;
+        int[] stack = scratch.stack;
+        int listed = tree.collect(xMin, xMax, yMin, yMax, list, stack);
+        if (listed == 0) {
+            return;
+        }
+        int entry = listed < 0 ? tree.entryNode(xMin, xMax, yMin, yMax) : -1;
+        if (listed < 0 && entry < 0) {
+            return;
+        }
 
-    private static double dot(double[] a, double[] b) {
-        return a[0]*b[0] + a[1]*b[1] + a[2]*b[2];
-    }
+        double[] stackT = scratch.stackT;
+        double[] hit = scratch.hit;
+        double[] s = tree.spheres;
+        int[] order = tree.order;
+        double[] dirs = rayDirections;
+        for (int y = y0; y < y1; y++) {
+            int row = y * WIDTH;
+            for (int x = x0, i = 3 * (row + x0); x < x1; x++, i += 3) {
+                double dx = dirs[i];
+                double dy = dirs[i + 1];
+                double dz = dirs[i + 2];
+                int k = listed > 0 ? tree.nearestInList(dx, dy, dz, list, listed, hit)
+                        : tree.nearest(dx, dy, dz, entry, stack, stackT, hit);
+                if (k < 0) {
+                    continue;
+                }
 
-    private static double[] add(double[] a, double[] b) {
-        return new double[]{a[0]+b[0], a[1]+b[1], a[2]+b[2]};
+                // Нормаль в точке попадания: (point - center) / radius
+                double nearest = hit[0];
+                int o = 5 * k;
+                double nx = (dx * nearest - s[o]) * s[o + 4];
+                double ny = (dy * nearest - s[o + 1]) * s[o + 4];
+                double nz = (dz * nearest - s[o + 2]) * s[o + 4];
+                double diffuse = Math.max(0, nx * LIGHT_X + ny * LIGHT_Y + nz * LIGHT_Z);
+                double brightness = 0.2 + 0.8 * diffuse;
+                int c = 3 * order[k];
+                pixels[row + x] = argb(colors[c] * brightness, colors[c + 1] * brightness, colors[c + 2] * brightness);
+            }
+        }
     }
 
-    private static double[] subtract(double[] a, double[] b) {
-        return new double[]{a[0]-b[0], a[1]-b[1], a[2]-b[2]};
-    }
+    /**
+     * Делит диапазон тайлов пополам, пока в задаче не останется один тайл.
+     * Тайлы не пересекаются, поэтому запись в pixels не требует синхронизации.
+     */
+    @SuppressWarnings("serial")
+    private class TileTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        TileTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
 
-    private static double[] multiply(double[] v, double s) {
-        return new double[]{v[0]*s, v[1]*s, v[2]*s};
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+                return;
+            }
+            traceTile(from);
+        }
     }
 
-    private static Color adjustColor(Color color, double factor) {
-        return new Color(
-                clamp(color.getRed() * factor),
-                clamp(color.getGreen() * factor),
-                clamp(color.getBlue() * factor),
-                1.0
-        );
+    /** Непрозрачный цвет с компонентами в [0, 1] (лишнее обрезается), упакованный в ARGB. */
+    private static int argb(double red, double green, double blue) {
+        return 0xFF000000
+                | (int) Math.round(clamp(red) * 255) << 16
+                | (int) Math.round(clamp(green) * 255) << 8
+                | (int) Math.round(clamp(blue) * 255);
     }
 
     private static double clamp(double value) {
         return Math.max(0, Math.min(1, value));
     }
-}
\ No newline at end of file
+
+    /**
+     * Счётчики конвейера: задержка от начала трассировки кадра до его вывода,
+     * опоздавшие кадры (выведены на пульс позже того, для которого посчитаны),
+     * выброшенные (заменены более новыми до вывода), пульсы без нового кадра
+     * и перестройки иерархии сфер.
+     */
+    static final class FrameStats {
+        private long presented;
+        private long totalLatency;
+        private long maxLatency;
+        private long late;
+        private long dropped;
+        private long repeated;
+        private long rebuilds;
+
+        synchronized void recordPresented(long latency, long lateness, long pulseInterval) {
+            presented++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            if (lateness > pulseInterval / 2) {
+                late++;
+            }
+        }
+
+        synchronized void recordDropped() {
+            dropped++;
+        }
+
+        synchronized void recordRepeated() {
+            repeated++;
+        }
+
+        synchronized void recordRebuild() {
+            rebuilds++;
+        }
+
+        synchronized String summary() {
+            if (presented == 0) {
+                return "нет кадров";
+            }
+            return String.format(Locale.ROOT,
+                    "кадров %d, задержка сред. %.1f мс, макс. %.1f мс, опоздали %d, выброшено %d, пульсов без кадра %d, "
+                            + "перестроек BVH %d",
+                    presented, totalLatency / 1e6 / presented, maxLatency / 1e6, late, dropped, repeated, rebuilds);
+        }
+    }
+}
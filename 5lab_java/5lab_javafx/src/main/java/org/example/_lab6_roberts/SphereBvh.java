@@ -0,0 +1,432 @@
+package org.example._lab6_roberts;
+
+/**
+ * Иерархия ограничивающих объёмов (BVH) над движущимися сферами в плоских массивах.
+ * Дерево строится делением по медиане центров, после чего сферы лежат в порядке листьев.
+ * Каждый кадр сферы сдвигаются, и дерево не перестраивается, а подгоняется: границы
+ * узлов пересчитываются снизу вверх при той же структуре. Заодно считается стоимость
+ * дерева по площадям поверхностей (SAH); когда после подгонок она вырастает в
+ * REBUILD_RATIO раз относительно только что построенного дерева, его пора перестроить.
+ */
+final class SphereBvh {
+    // До стольких сфер лист проверяет подряд: на мелких листьях спуск по узлам дороже самих пересечений
+    private static final int LEAF_SIZE = 4;
+    // Во сколько раз может вырасти стоимость дерева после подгонок до перестройки
+    private static final double REBUILD_RATIO = 1.5;
+    // Запас к границам узлов, чтобы луч по касательной к сфере не терялся на округлении
+    private static final double PADDING = 1e-9;
+    // Длина рабочих стеков collect и nearest. Сферы узла делятся пополам по числу, так что
+    // путь от корня короче 32 узлов, а на уровень в стек кладётся не больше одного брата
+    static final int STACK_SIZE = 64;
+
+    // order[k] — исходный номер сферы на k-м месте в порядке листьев
+    final int[] order;
+    // Сферы в порядке листьев, по пять чисел: x, y, z центра, |center|^2 - r^2 и 1 / r
+    final double[] spheres;
+    private final double[] radii;
+
+    // Дерево хранится в прямом порядке: узел n, за ним всё его левое поддерево (начиная с n + 1),
+    // затем правое с корнем nodeRight[n]; поэтому refit идёт одним проходом от конца к началу.
+    // Лист (nodeCount > 0) ссылается на подряд лежащие в spheres места nodeFirst .. nodeFirst + nodeCount - 1
+    private final double[] nodeBounds; // minX, minY, minZ, maxX, maxY, maxZ
+    private final int[] nodeRight;
+    private final int[] nodeFirst;
+    private final int[] nodeCount;
+    private int nodes;
+
+    private double builtCost;
+    private double cost;
+
+    SphereBvh(double[] centers, double[] radii) {
+        int count = radii.length;
+        this.order = new int[count];
+        this.spheres = new double[5 * count];
+        this.radii = new double[count];
+        // Лист появляется, когда пополам делить уже нечего, и получает не меньше LEAF_SIZE / 2 сфер;
+        // узлов в двоичном дереве меньше, чем вдвое больше листьев
+        int maxNodes = Math.max(1, 2 * count / (LEAF_SIZE / 2));
+        nodeBounds = new double[6 * maxNodes];
+        nodeRight = new int[maxNodes];
+        nodeFirst = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        rebuild(centers, radii);
+    }
+
+    int size() {
+        return order.length;
+    }
+
+    /** Строит дерево заново по текущим центрам и радиусам (в исходном порядке сфер). */
+    void rebuild(double[] centers, double[] radii) {
+        int count = order.length;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        nodes = 0;
+        if (count > 0) {
+            build(centers, 0, count);
+        }
+        refit(centers, radii);
+        builtCost = cost;
+    }
+
+    /** Строит узел над order[from, to) и возвращает его номер; границы заполняет refit. */
+    private int build(double[] centers, int from, int to) {
+        int node = nodes++;
+        if (to - from <= LEAF_SIZE) {
+            nodeFirst[node] = from;
+            nodeCount[node] = to - from;
+            return node;
+        }
+        nodeCount[node] = 0;
+
+        // Ось деления — та, вдоль которой центры сфер узла разбросаны сильнее всего
+        // (границы самих сфер с радиусами посчитает refit)
+        double[] centerBounds = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int k = from; k < to; k++) {
+            int i = order[k];
+            for (int axis = 0; axis < 3; axis++) {
+                double c = centers[3 * i + axis];
+                centerBounds[axis] = Math.min(centerBounds[axis], c);
+                centerBounds[3 + axis] = Math.max(centerBounds[3 + axis], c);
+            }
+        }
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (centerBounds[3 + a] - centerBounds[a] > centerBounds[3 + axis] - centerBounds[axis]) {
+                axis = a;
+            }
+        }
+        int mid = (from + to) >>> 1;
+        select(centers, from, to, mid, axis);
+        build(centers, from, mid);
+        nodeRight[node] = build(centers, mid, to);
+        return node;
+    }
+
+    /**
+     * Частичная сортировка order[from, to) по координате axis центра (quickselect): после неё
+     * сферы левее места k не правее сферы на месте k, а правее — не левее. Полный порядок
+     * внутри половин build не нужен.
+     */
+    private void select(double[] centers, int from, int to, int k, int axis) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            double pivot = centers[3 * order[(lo + hi) >>> 1] + axis];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (centers[3 * order[i] + axis] < pivot) {
+                    i++;
+                }
+                while (centers[3 * order[j] + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Переносит новые центры и радиусы (в исходном порядке сфер) в порядок листьев
+     * и пересчитывает границы узлов при прежней структуре дерева. Потомки узла
+     * всегда идут после него, поэтому достаточно одного прохода с конца.
+     */
+    void refit(double[] centers, double[] radii) {
+        double[] s = spheres;
+        for (int k = 0; k < order.length; k++) {
+            int i = order[k];
+            double x = centers[3 * i];
+            double y = centers[3 * i + 1];
+            double z = centers[3 * i + 2];
+            double r = radii[i];
+            s[5 * k] = x;
+            s[5 * k + 1] = y;
+            s[5 * k + 2] = z;
+            s[5 * k + 3] = x * x + y * y + z * z - r * r;
+            s[5 * k + 4] = 1 / r;
+            this.radii[k] = r;
+        }
+
+        double[] b = nodeBounds;
+        double total = 0;
+        for (int node = nodes - 1; node >= 0; node--) {
+            int o = 6 * node;
+            if (nodeCount[node] > 0) {
+                b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+                b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+                int end = nodeFirst[node] + nodeCount[node];
+                for (int k = nodeFirst[node]; k < end; k++) {
+                    double r = this.radii[k] + PADDING;
+                    for (int axis = 0; axis < 3; axis++) {
+                        double c = s[5 * k + axis];
+                        b[o + axis] = Math.min(b[o + axis], c - r);
+                        b[o + 3 + axis] = Math.max(b[o + 3 + axis], c + r);
+                    }
+                }
+                total += area(o) * nodeCount[node];
+            } else {
+                int left = 6 * (node + 1);
+                int right = 6 * nodeRight[node];
+                for (int axis = 0; axis < 3; axis++) {
+                    b[o + axis] = Math.min(b[left + axis], b[right + axis]);
+                    b[o + 3 + axis] = Math.max(b[left + 3 + axis], b[right + 3 + axis]);
+                }
+                total += area(o);
+            }
+        }
+        // Стоимость относительно корня: ожидаемое число проверок для луча, задевшего корень
+        cost = nodes == 0 ? 0 : total / Math.max(area(0), Double.MIN_NORMAL);
+    }
+
+    private double area(int o) {
+        double dx = nodeBounds[o + 3] - nodeBounds[o];
+        double dy = nodeBounds[o + 4] - nodeBounds[o + 1];
+        double dz = nodeBounds[o + 5] - nodeBounds[o + 2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /** Стоимость дерева после подгонок выросла настолько, что его выгоднее перестроить. */
+    boolean needsRebuild() {
+        return cost > REBUILD_RATIO * builtCost;
+    }
+
+    /**
+     * Узел, с которого стоит начинать обход для лучей из начала координат с наклонами
+     * x / -z в [xMin, xMax] и y / -z в [yMin, yMax]: спускаемся от корня, пока в эту
+     * пирамиду попадает только один потомок.
+     *
+     * @return номер узла или -1, если пирамида не задевает ни одной сферы
+     */
+    int entryNode(double xMin, double xMax, double yMin, double yMax) {
+        if (nodes == 0 || !inPyramid(0, xMin, xMax, yMin, yMax)) {
+            return -1;
+        }
+        int node = 0;
+        while (nodeCount[node] == 0) {
+            boolean left = inPyramid(node + 1, xMin, xMax, yMin, yMax);
+            boolean right = inPyramid(nodeRight[node], xMin, xMax, yMin, yMax);
+            if (left && right) {
+                break;
+            }
+            if (!left && !right) {
+                return -1;
+            }
+            node = left ? node + 1 : nodeRight[node];
+        }
+        return node;
+    }
+
+    /**
+     * Записывает в list места (в порядке листьев) сфер, задевающих ту же пирамиду, что
+     * и в entryNode, если их не больше list.length.
+     *
+     * @param stack рабочий стек не короче STACK_SIZE
+     * @return число сфер или -1, если их больше, чем помещается в list
+     */
+    int collect(double xMin, double xMax, double yMin, double yMax, int[] list, int[] stack) {
+        if (nodes == 0) {
+            return 0;
+        }
+        // Длины нормалей плоскостей пирамиды: сфера снаружи, если она дальше радиуса от плоскости
+        double lxMin = Math.sqrt(1 + xMin * xMin);
+        double lxMax = Math.sqrt(1 + xMax * xMax);
+        double lyMin = Math.sqrt(1 + yMin * yMin);
+        double lyMax = Math.sqrt(1 + yMax * yMax);
+        int top = 0;
+        int found = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!inPyramid(node, xMin, xMax, yMin, yMax)) {
+                continue;
+            }
+            if (nodeCount[node] == 0) {
+                stack[top++] = nodeRight[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            int end = nodeFirst[node] + nodeCount[node];
+            for (int k = nodeFirst[node]; k < end; k++) {
+                double x = spheres[5 * k];
+                double y = spheres[5 * k + 1];
+                double z = spheres[5 * k + 2];
+                double r = radii[k] + PADDING;
+                if (x + xMin * z >= -r * lxMin && -x - xMax * z >= -r * lxMax
+                        && y + yMin * z >= -r * lyMin && -y - yMax * z >= -r * lyMax) {
+                    if (found == list.length) {
+                        return -1;
+                    }
+                    list[found++] = k;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Задевает ли узел пирамиду, заданную четырьмя плоскостями через начало координат:
+     * x + xMin z >= 0, -x - xMax z >= 0, y + yMin z >= 0, -y - yMax z >= 0.
+     * Для каждой плоскости берётся вершина параллелепипеда, дальше всех уходящая внутрь.
+     */
+    private boolean inPyramid(int node, double xMin, double xMax, double yMin, double yMax) {
+        double[] b = nodeBounds;
+        int o = 6 * node;
+        return b[o + 3] + xMin * b[o + (xMin >= 0 ? 5 : 2)] >= 0
+                && -b[o] - xMax * b[o + (xMax >= 0 ? 2 : 5)] >= 0
+                && b[o + 4] + yMin * b[o + (yMin >= 0 ? 5 : 2)] >= 0
+                && -b[o + 1] - yMax * b[o + (yMax >= 0 ? 2 : 5)] >= 0;
+    }
+
+    /**
+     * Ближайшее пересечение луча из начала координат с единичным направлением (dx, dy, dz)
+     * со сферами поддерева entry. Сначала обходится потомок, в который луч входит раньше;
+     * узлы, в которые луч входит не ближе уже найденного пересечения, пропускаются.
+     *
+     * @param stack  рабочий стек не короче STACK_SIZE
+     * @param stackT рабочий стек расстояний входа не короче STACK_SIZE
+     * @param hit    в hit[0] записывается расстояние до пересечения
+     * @return место сферы в порядке листьев или -1, если луч ни во что не попал
+     */
+    int nearest(double dx, double dy, double dz, int entry, int[] stack, double[] stackT, double[] hit) {
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+        // Со стороны, откуда луч входит в узел, у положительной компоненты направления
+        // нижняя граница, у отрицательной — верхняя
+        int ox = dx >= 0 ? 0 : 3;
+        int oy = dy >= 0 ? 1 : 4;
+        int oz = dz >= 0 ? 2 : 5;
+        double nearest = Double.POSITIVE_INFINITY;
+        int found = -1;
+        double[] s = spheres;
+
+        double enter = enter(entry, ix, iy, iz, ox, oy, oz, nearest);
+        if (enter == Double.POSITIVE_INFINITY) {
+            return -1;
+        }
+        int top = 0;
+        stack[top] = entry;
+        stackT[top++] = enter;
+        while (top > 0) {
+            int node = stack[--top];
+            if (stackT[top] >= nearest) {
+                continue;
+            }
+            while (true) {
+                if (nodeCount[node] > 0) {
+                    int end = nodeFirst[node] + nodeCount[node];
+                    for (int k = nodeFirst[node]; k < end; k++) {
+                        int o = 5 * k;
+                        double halfB = -(dx * s[o] + dy * s[o + 1] + dz * s[o + 2]);
+                        double discriminant = halfB * halfB - s[o + 3];
+                        if (discriminant < 0) {
+                            continue;
+                        }
+                        double t = -halfB - Math.sqrt(discriminant);
+                        if (t > 0 && t < nearest) {
+                            nearest = t;
+                            found = k;
+                        }
+                    }
+                    break;
+                }
+                int left = node + 1;
+                int right = nodeRight[node];
+                double tLeft = enter(left, ix, iy, iz, ox, oy, oz, nearest);
+                double tRight = enter(right, ix, iy, iz, ox, oy, oz, nearest);
+                if (tLeft == Double.POSITIVE_INFINITY && tRight == Double.POSITIVE_INFINITY) {
+                    break;
+                }
+                if (tRight == Double.POSITIVE_INFINITY) {
+                    node = left;
+                } else if (tLeft == Double.POSITIVE_INFINITY) {
+                    node = right;
+                } else if (tLeft <= tRight) {
+                    stack[top] = right;
+                    stackT[top++] = tRight;
+                    node = left;
+                } else {
+                    stack[top] = left;
+                    stackT[top++] = tLeft;
+                    node = right;
+                }
+            }
+        }
+        hit[0] = nearest;
+        return found;
+    }
+
+    /**
+     * То же, что nearest, но луч проверяется только со сферами list[0 .. count)
+     * (места в порядке листьев, как их возвращает collect).
+     */
+    int nearestInList(double dx, double dy, double dz, int[] list, int count, double[] hit) {
+        double[] s = spheres;
+        double nearest = Double.POSITIVE_INFINITY;
+        int found = -1;
+        for (int j = 0; j < count; j++) {
+            int o = 5 * list[j];
+            double halfB = -(dx * s[o] + dy * s[o + 1] + dz * s[o + 2]);
+            double discriminant = halfB * halfB - s[o + 3];
+            if (discriminant < 0) {
+                continue;
+            }
+            double t = -halfB - Math.sqrt(discriminant);
+            if (t > 0 && t < nearest) {
+                nearest = t;
+                found = list[j];
+            }
+        }
+        hit[0] = nearest;
+        return found;
+    }
+
+    /**
+     * Расстояние, на котором луч из начала координат с обратным направлением (ix, iy, iz)
+     * входит в узел, или +бесконечность, если он его не задевает или входит не ближе limit.
+     * ox, oy, oz — смещения границ, через которые луч входит (0 или 3 по своей оси).
+     * Сравнения записаны явно: Math.min и Math.max для double заметно медленнее.
+     */
+    private double enter(int node, double ix, double iy, double iz, int ox, int oy, int oz, double limit) {
+        double[] b = nodeBounds;
+        int o = 6 * node;
+        double near = b[o + ox] * ix;
+        double far = b[o + 3 - ox] * ix;
+        double nearY = b[o + oy] * iy;
+        double farY = b[o + 5 - oy] * iy;
+        double nearZ = b[o + oz] * iz;
+        double farZ = b[o + 7 - oz] * iz;
+        if (nearY > near) {
+            near = nearY;
+        }
+        if (nearZ > near) {
+            near = nearZ;
+        }
+        if (farY < far) {
+            far = farY;
+        }
+        if (farZ < far) {
+            far = farZ;
+        }
+        if (near > far || far < 0 || near >= limit) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return near;
+    }
+}